@@ -0,0 +1,231 @@
+//
+//  ActivityResultRouter.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Corona Imports
+import com.ansca.corona.CoronaActivity;
+
+// Android Imports
+import android.content.Intent;
+
+/**
+ * The plugin's activity result router, one per Corona activity.
+ * <p>
+ * Android doesn't return the results of activities in the order they were started, so every request waiting
+ * for a result gets a slot of its own, with its own request code. Corona hands out one request code per
+ * handler object, so each slot registers a small handler the first time it is used, and keeps its code until
+ * the router is unregistered. A result is looked up by the slot its request code belongs to, and handed to the
+ * request whose ID is in the slot.
+ */
+public class ActivityResultRouter
+{
+	// Maximum number of PayPal activities waiting for a result at once
+	private static final int MAX_IN_FLIGHT = 16;
+	// Marks a slot no request is waiting in
+	private static final int FREE = 0;
+
+	// The router of the current Corona activity
+	private static ActivityResultRouter sRouter = null;
+	// Number of routers registered with a Corona activity
+	private static final AtomicInteger sRegisteredCount = new AtomicInteger();
+
+	// The Corona activity the router is registered with
+	private final CoronaActivity fActivity;
+	// The handler of each slot, null until the slot is first used
+	private final SlotHandler[] fHandlers = new SlotHandler[MAX_IN_FLIGHT];
+	// The request code Corona gave each slot's handler
+	private final int[] fRequestCodes = new int[MAX_IN_FLIGHT];
+	// The ID of the request waiting in each slot, or FREE
+	private final int[] fRequestIds = new int[MAX_IN_FLIGHT];
+	// Whether the router has been unregistered
+	private boolean fUnregistered = false;
+
+	// Receives the results for one slot's request code
+	private final class SlotHandler implements CoronaActivity.OnActivityResultHandler
+	{
+		// The slot
+		private final int fSlot;
+
+		SlotHandler( int slot )
+		{
+			fSlot = slot;
+		}
+
+		// This method is called on the UI thread when we return to the CoronaActivity
+		@Override
+		public void onHandleActivityResult( CoronaActivity activity, int requestCode, int resultCode, Intent data )
+		{
+			onResult( fSlot, requestCode, activity, resultCode, data );
+		}
+	}
+
+	// Routers are created by forActivity()
+	private ActivityResultRouter( CoronaActivity activity )
+	{
+		fActivity = activity;
+		sRegisteredCount.incrementAndGet();
+	}
+
+	/**
+	 * Gets the router of a Corona activity, registering one the first time.
+	 * @param activity The Corona activity.
+	 * @return Returns the router.
+	 */
+	public static synchronized ActivityResultRouter forActivity( CoronaActivity activity )
+	{
+		if ( sRouter == null || sRouter.fActivity != activity )
+		{
+			// A new activity, the old one's router is no longer needed
+			if ( sRouter != null )
+			{
+				sRouter.unregister();
+			}
+			sRouter = new ActivityResultRouter( activity );
+		}
+		return sRouter;
+	}
+
+	/**
+	 * Unregisters the router of a Corona activity, for when the activity is going away.
+	 * @param activity The Corona activity.
+	 */
+	public static synchronized void unregister( CoronaActivity activity )
+	{
+		if ( sRouter != null && sRouter.fActivity == activity )
+		{
+			sRouter.unregister();
+			sRouter = null;
+		}
+	}
+
+	/**
+	 * Gets the number of routers currently registered, which should never be more than one.
+	 * @return Returns the number of registered routers.
+	 */
+	public static int getRegisteredCount()
+	{
+		return sRegisteredCount.get();
+	}
+
+	// Unregisters this router's slot handlers and drops its requests
+	private void unregister()
+	{
+		synchronized ( fRequestIds )
+		{
+			for ( int i = 0; i < MAX_IN_FLIGHT; i++ )
+			{
+				if ( fHandlers[i] != null )
+				{
+					fActivity.unregisterActivityResultHandler( fHandlers[i] );
+					fHandlers[i] = null;
+				}
+				fRequestIds[i] = FREE;
+			}
+			fUnregistered = true;
+		}
+		sRegisteredCount.decrementAndGet();
+	}
+
+	/**
+	 * Starts a PayPal activity for a request, with the request code of a free slot.
+	 * <p>
+	 * The slot is held until the activity's result arrives, even if the request has been dropped by then, so
+	 * a late result can never be mistaken for the result of a newer request.
+	 * @param requestId The ID of the request waiting for the result.
+	 * @param intent The intent of the PayPal activity to start.
+	 * @return Returns false if too many requests are already waiting for a result.
+	 */
+	public boolean start( int requestId, Intent intent )
+	{
+		synchronized ( fRequestIds )
+		{
+			if ( fUnregistered )
+			{
+				return false;
+			}
+
+			// Find a free slot
+			int slot = 0;
+			while ( slot < MAX_IN_FLIGHT && fRequestIds[slot] != FREE )
+			{
+				slot++;
+			}
+			if ( slot == MAX_IN_FLIGHT )
+			{
+				return false;
+			}
+
+			// Get the slot its own request code the first time it is used
+			if ( fHandlers[slot] == null )
+			{
+				fHandlers[slot] = new SlotHandler( slot );
+				fRequestCodes[slot] = fActivity.registerActivityResultHandler( fHandlers[slot] );
+			}
+
+			// Fill the slot before starting, so the result can't arrive first
+			fRequestIds[slot] = requestId;
+			try
+			{
+				fActivity.startActivityForResult( intent, fRequestCodes[slot] );
+			}
+			catch ( RuntimeException ex )
+			{
+				fRequestIds[slot] = FREE;
+				throw ex;
+			}
+		}
+		return true;
+	}
+
+	// Frees the slot a result is for and hands the result to the slot's request, if it is still in flight
+	private void onResult( int slot, int requestCode, CoronaActivity activity, int resultCode, Intent data )
+	{
+		// Take the ID of the request waiting in the slot
+		int requestId = FREE;
+		synchronized ( fRequestIds )
+		{
+			if ( fRequestCodes[slot] == requestCode )
+			{
+				requestId = fRequestIds[slot];
+				fRequestIds[slot] = FREE;
+			}
+		}
+
+		// Hand it the result
+		if ( requestId != FREE )
+		{
+			PaymentRequest.onResult( requestId, activity, resultCode, data );
+		}
+	}
+}
@@ -0,0 +1,425 @@
+//
+//  Cart.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JNLua imports
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+/**
+ * A shopping cart built up from Lua with payPal.newCart(), and passed to show() as a whole.
+ * <p>
+ * The subtotal, tax and shipping are kept up to date as lines are added and removed, so no mutation
+ * walks the other lines and show() does not need Lua to send the lines again.
+ * Carts are only changed and read on the Lua thread.
+ */
+public class Cart
+{
+	// The live carts by ID, weakly held so a cart goes away with its Lua table
+	private static final ConcurrentHashMap<Integer, WeakReference<Cart>> sCarts = new ConcurrentHashMap<Integer, WeakReference<Cart>>();
+	// The last cart ID handed out
+	private static final AtomicInteger sLastId = new AtomicInteger( 0 );
+	// How many carts are created between sweeps for carts Lua has collected
+	private static final int SWEEP_INTERVAL = 64;
+
+	// A line of the cart
+	private static final class Line
+	{
+		// Number of units
+		int quantity;
+		// Price of one unit, in minor units
+		long price;
+		// Tax on one unit, in minor units
+		long tax;
+	}
+
+	// The cart ID
+	private final int fId;
+	// The currency of the cart, may be null
+	private final String fCurrencyCode;
+	// Number of decimal places of the amounts
+	private final int fScale;
+	// The lines, by SKU, in the order they were first added
+	private final LinkedHashMap<String, Line> fLines = new LinkedHashMap<String, Line>();
+	// Running totals, in minor units
+	private long fSubtotal = 0;
+	private long fTax = 0;
+	private long fShipping = 0;
+	// Running total of units
+	private int fQuantity = 0;
+
+	/**
+	 * Creates a new cart and registers it.
+	 * @param currencyCode The currency of the cart, or null to leave it to show().
+	 * @param scale The number of decimal places of the currency.
+	 */
+	public Cart( String currencyCode, int scale )
+	{
+		fId = sLastId.incrementAndGet();
+		fCurrencyCode = currencyCode;
+		fScale = scale;
+
+		// Forget carts Lua has collected, every so often
+		if ( fId % SWEEP_INTERVAL == 0 )
+		{
+			Iterator<WeakReference<Cart>> carts = sCarts.values().iterator();
+			while ( carts.hasNext() )
+			{
+				if ( carts.next().get() == null ) carts.remove();
+			}
+		}
+		sCarts.put( fId, new WeakReference<Cart>( this ) );
+	}
+
+	/**
+	 * Looks up a cart by ID.
+	 * @param id The cart ID.
+	 * @return Returns the cart, or null if there is no such cart or Lua has collected it.
+	 */
+	public static Cart get( int id )
+	{
+		WeakReference<Cart> cart = sCarts.get( id );
+		return cart != null ? cart.get() : null;
+	}
+
+	/**
+	 * Gets the cart ID.
+	 * @return Returns the ID.
+	 */
+	public int getId()
+	{
+		return fId;
+	}
+
+	/**
+	 * Gets the currency of the cart.
+	 * @return Returns the currency code, or null if none was given.
+	 */
+	public String getCurrencyCode()
+	{
+		return fCurrencyCode;
+	}
+
+	/**
+	 * Gets the number of decimal places of the cart's amounts.
+	 * @return Returns the scale.
+	 */
+	public int getScale()
+	{
+		return fScale;
+	}
+
+	/**
+	 * Gets the sum of the price of every unit.
+	 * @return Returns the subtotal, in minor units.
+	 */
+	public long getSubtotal()
+	{
+		return fSubtotal;
+	}
+
+	/**
+	 * Gets the sum of the tax on every unit.
+	 * @return Returns the tax, in minor units.
+	 */
+	public long getTax()
+	{
+		return fTax;
+	}
+
+	/**
+	 * Gets the shipping cost.
+	 * @return Returns the shipping, in minor units.
+	 */
+	public long getShipping()
+	{
+		return fShipping;
+	}
+
+	/**
+	 * Gets the number of units in the cart.
+	 * @return Returns the total quantity.
+	 */
+	public int getQuantity()
+	{
+		return fQuantity;
+	}
+
+	/**
+	 * Adds units of a SKU, or changes the price of a SKU already in the cart.
+	 * @param sku The SKU.
+	 * @param quantity The number of units to add, zero to only change the price.
+	 * @param price The price of one unit, in minor units.
+	 * @param tax The tax on one unit, in minor units.
+	 * @return Returns null, or a description of the problem if nothing was changed.
+	 */
+	public String add( String sku, int quantity, long price, long tax )
+	{
+		if ( quantity < 0 ) return "quantity must not be negative";
+		if ( price < 0 || tax < 0 ) return "price and tax must not be negative";
+
+		// The line, new or existing
+		Line line = fLines.get( sku );
+		int oldQuantity = line != null ? line.quantity : 0;
+		long oldPrice = line != null ? line.price : 0;
+		long oldTax = line != null ? line.tax : 0;
+		int newQuantity = oldQuantity + quantity;
+		if ( newQuantity <= 0 ) return quantity == 0 ? "quantity must be greater than 0 for a new SKU" : "quantity is too large";
+
+		// The new number of units in the cart
+		long totalQuantity = Money.add( fQuantity, quantity );
+		if ( totalQuantity == Money.INVALID || totalQuantity > Integer.MAX_VALUE ) return "quantity is too large";
+
+		// The new totals, with the line's old contribution taken out
+		long subtotal = Money.add( Money.subtract( fSubtotal, Money.multiply( oldPrice, oldQuantity ) ), Money.multiply( price, newQuantity ) );
+		long totalTax = Money.add( Money.subtract( fTax, Money.multiply( oldTax, oldQuantity ) ), Money.multiply( tax, newQuantity ) );
+		if ( subtotal == Money.INVALID || totalTax == Money.INVALID || Money.add( Money.add( subtotal, totalTax ), fShipping ) == Money.INVALID )
+		{
+			return "cart total is too large";
+		}
+
+		// Apply
+		if ( line == null )
+		{
+			line = new Line();
+			fLines.put( sku, line );
+		}
+		line.quantity = newQuantity;
+		line.price = price;
+		line.tax = tax;
+		fSubtotal = subtotal;
+		fTax = totalTax;
+		fQuantity = (int)totalQuantity;
+		return null;
+	}
+
+	/**
+	 * Removes units of a SKU.
+	 * @param sku The SKU.
+	 * @param quantity The number of units to remove, or -1 to remove the whole line.
+	 * @return Returns true if the SKU was in the cart.
+	 */
+	public boolean remove( String sku, int quantity )
+	{
+		Line line = fLines.get( sku );
+		if ( line == null ) return false;
+
+		// Take the units and their totals out
+		int removed = quantity < 0 || quantity >= line.quantity ? line.quantity : quantity;
+		fSubtotal -= line.price * removed;
+		fTax -= line.tax * removed;
+		fQuantity -= removed;
+		line.quantity -= removed;
+		if ( line.quantity == 0 ) fLines.remove( sku );
+		return true;
+	}
+
+	/**
+	 * Sets the shipping cost.
+	 * @param shipping The shipping, in minor units.
+	 * @return Returns null, or a description of the problem if nothing was changed.
+	 */
+	public String setShipping( long shipping )
+	{
+		if ( shipping < 0 ) return "shipping must not be negative";
+		if ( Money.add( Money.add( fSubtotal, fTax ), shipping ) == Money.INVALID ) return "cart total is too large";
+		fShipping = shipping;
+		return null;
+	}
+
+	/**
+	 * Empties the cart and clears the shipping cost.
+	 */
+	public void clear()
+	{
+		fLines.clear();
+		fSubtotal = 0;
+		fTax = 0;
+		fShipping = 0;
+		fQuantity = 0;
+	}
+
+	/**
+	 * Describes the cart for the PayPal window, e.g. "2 x sword, shield".
+	 * @return Returns the description.
+	 */
+	public String describe()
+	{
+		StringBuilder description = new StringBuilder();
+		for ( Map.Entry<String, Line> entry : fLines.entrySet() )
+		{
+			if ( description.length() > 0 ) description.append( ", " );
+			int quantity = entry.getValue().quantity;
+			if ( quantity > 1 ) description.append( quantity ).append( " x " );
+			description.append( entry.getKey() );
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Pushes a Lua table for this cart, with its methods and its ID.
+	 * @param L The Lua state to push to.
+	 */
+	public void push( LuaState L )
+	{
+		L.newTable( 0, 7 );
+		L.pushInteger( fId );
+		L.setField( -2, "id" );
+		L.pushJavaFunction( new Method( this, Method.ADD ) );
+		L.setField( -2, "add" );
+		L.pushJavaFunction( new Method( this, Method.REMOVE ) );
+		L.setField( -2, "remove" );
+		L.pushJavaFunction( new Method( this, Method.SET_SHIPPING ) );
+		L.setField( -2, "setShipping" );
+		L.pushJavaFunction( new Method( this, Method.CLEAR ) );
+		L.setField( -2, "clear" );
+		L.pushJavaFunction( new Method( this, Method.GET_TOTALS ) );
+		L.setField( -2, "getTotals" );
+	}
+
+	// Parses an amount passed from Lua, a number or a decimal string
+	private long parseAmount( LuaState L, int index )
+	{
+		return L.isNoneOrNil( index ) ? 0 : Money.parse( L.checkString( index ), fScale );
+	}
+
+	// Pushes an amount as a decimal string
+	private void pushAmount( LuaState L, long amount, String name )
+	{
+		L.pushString( Money.toBigDecimal( amount, fScale ).toPlainString() );
+		L.setField( -2, name );
+	}
+
+	// Returns nil and an error message to Lua, or true if there was no error
+	private static int result( LuaState L, String error )
+	{
+		if ( error != null )
+		{
+			L.pushNil();
+			L.pushString( error );
+			return 2;
+		}
+		L.pushBoolean( true );
+		return 1;
+	}
+
+	// A method of the cart's Lua table, called as cart:method( ... )
+	private static final class Method implements JavaFunction
+	{
+		// The methods
+		static final int ADD = 0;
+		static final int REMOVE = 1;
+		static final int SET_SHIPPING = 2;
+		static final int CLEAR = 3;
+		static final int GET_TOTALS = 4;
+
+		// The cart, held strongly so it lives as long as its Lua table
+		private final Cart fCart;
+		// Which method this is
+		private final int fMethod;
+
+		// Creates a method bound to a cart
+		Method( Cart cart, int method )
+		{
+			fCart = cart;
+			fMethod = method;
+		}
+
+		@Override
+		public int invoke( LuaState L )
+		{
+			// Argument 1 is the cart table itself
+			switch ( fMethod )
+			{
+				case ADD:
+				{
+					// cart:add( sku, quantity, price [, tax] )
+					String sku = L.checkString( 2 );
+					int quantity = L.checkInteger( 3 );
+					if ( L.isNoneOrNil( 4 ) )
+					{
+						return result( L, "price expected" );
+					}
+					long price = fCart.parseAmount( L, 4 );
+					long tax = fCart.parseAmount( L, 5 );
+					if ( price == Money.INVALID || tax == Money.INVALID )
+					{
+						return result( L, "price and tax must be decimal numbers with at most " + fCart.fScale + " decimal places" );
+					}
+					return result( L, fCart.add( sku, quantity, price, tax ) );
+				}
+				case REMOVE:
+				{
+					// cart:remove( sku [, quantity] )
+					String sku = L.checkString( 2 );
+					int quantity = L.checkInteger( 3, -1 );
+					L.pushBoolean( fCart.remove( sku, quantity ) );
+					return 1;
+				}
+				case SET_SHIPPING:
+				{
+					// cart:setShipping( amount )
+					long shipping = fCart.parseAmount( L, 2 );
+					if ( shipping == Money.INVALID )
+					{
+						return result( L, "shipping must be a decimal number with at most " + fCart.fScale + " decimal places" );
+					}
+					return result( L, fCart.setShipping( shipping ) );
+				}
+				case CLEAR:
+				{
+					fCart.clear();
+					return 0;
+				}
+				default:
+				{
+					// The totals, as exact decimal strings
+					L.newTable( 0, 5 );
+					fCart.pushAmount( L, fCart.fSubtotal, "subtotal" );
+					fCart.pushAmount( L, fCart.fTax, "tax" );
+					fCart.pushAmount( L, fCart.fShipping, "shipping" );
+					fCart.pushAmount( L, fCart.fSubtotal + fCart.fTax + fCart.fShipping, "total" );
+					L.pushInteger( fCart.fQuantity );
+					L.setField( -2, "quantity" );
+					return 1;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,245 @@
+//
+//  ConfigOptions.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+/**
+ * The decoded options table passed to config() in Lua.
+ */
+public class ConfigOptions extends LuaOptions
+{
+	// Paypal production client ID
+	public String productionClientID = null;
+	// Paypal Sandbox client ID
+	public String sandboxClientID = null;
+	// Accept Credit Cards bool
+	public boolean acceptCreditCards = false;
+	// The langauge the Paypal view controllers will use
+	public String language = null;
+	// The name of the Paypal Merchant
+	public String merchantName = null;
+	// The Paypal merchants privacy policy URL
+	public String merchantPrivacyPolicyURL = "https://www.paypal.com/webapps/mpp/ua/privacy-full";
+	// The Paypal merchants user agreement policy URL
+	public String merchantUserAgreementURL = "https://www.paypal.com/webapps/mpp/ua/useragreement-full";
+	// Paypal Environment
+	public String environment = null;
+	// Remember user
+	public boolean rememberUser = true;
+	// Use sandbox defaults
+	public boolean useSandboxDefaults = false;
+	// Sandbox password
+	public String sandboxPassword = null;
+	// Sandbox Pin
+	public String sandboxPin = null;
+	// Email
+	public String email = null;
+	// Phone Number
+	public String phoneNumber = null;
+	// Phone Country code
+	public String phoneCountryCode = null;
+	// Server verification endpoint, null to skip verification
+	public String verificationURL = null;
+	// Number of times a verification request is tried
+	public int verificationAttempts = 3;
+	// Verification request timeout in milliseconds
+	public int verificationTimeout = 10000;
+	// Token exchange endpoint, null to skip token exchange
+	public String tokenExchangeURL = null;
+	// Seconds before expiry that an access token is refreshed
+	public double tokenExchangeRefreshMargin = 60;
+	// Token exchange request timeout in milliseconds
+	public int tokenExchangeTimeout = 10000;
+
+	// The merchant table
+	private final LuaOptions fMerchant = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "name" ) ) merchantName = reader.readString();
+			else if ( key.equals( "privacyPolicyURL" ) ) merchantPrivacyPolicyURL = orDefault( reader.readString(), merchantPrivacyPolicyURL );
+			else if ( key.equals( "userAgreementURL" ) ) merchantUserAgreementURL = orDefault( reader.readString(), merchantUserAgreementURL );
+			else return false;
+			return true;
+		}
+	};
+
+	// The sandbox table
+	private final LuaOptions fSandbox = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "useDefaults" ) ) useSandboxDefaults = reader.readBoolean( useSandboxDefaults );
+			else if ( key.equals( "password" ) ) sandboxPassword = reader.readString();
+			else if ( key.equals( "pin" ) ) sandboxPin = reader.readString();
+			else return false;
+			return true;
+		}
+	};
+
+	// The user table
+	private final LuaOptions fUser = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "email" ) ) email = reader.readString();
+			else if ( key.equals( "phoneNumber" ) ) phoneNumber = reader.readString();
+			else if ( key.equals( "phoneCountryCode" ) ) phoneCountryCode = reader.readString();
+			else return false;
+			return true;
+		}
+	};
+
+	// The verification table
+	private final LuaOptions fVerification = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "url" ) ) verificationURL = reader.readString();
+			else if ( key.equals( "attempts" ) ) verificationAttempts = (int)reader.readNumber( verificationAttempts );
+			else if ( key.equals( "timeout" ) ) verificationTimeout = (int)reader.readNumber( verificationTimeout );
+			else return false;
+			return true;
+		}
+	};
+
+	// The token exchange table
+	private final LuaOptions fTokenExchange = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "url" ) ) tokenExchangeURL = reader.readString();
+			else if ( key.equals( "refreshMargin" ) ) tokenExchangeRefreshMargin = reader.readNumber( tokenExchangeRefreshMargin );
+			else if ( key.equals( "timeout" ) ) tokenExchangeTimeout = (int)reader.readNumber( tokenExchangeTimeout );
+			else return false;
+			return true;
+		}
+	};
+
+	@Override
+	protected boolean onField( String key, LuaOptionsReader reader )
+	{
+		if ( key.equals( "productionClientID" ) ) productionClientID = reader.readString();
+		else if ( key.equals( "sandboxClientID" ) ) sandboxClientID = reader.readString();
+		else if ( key.equals( "acceptCreditCards" ) ) acceptCreditCards = reader.readBoolean( acceptCreditCards );
+		else if ( key.equals( "language" ) ) language = reader.readString();
+		else if ( key.equals( "environment" ) ) environment = reader.readString();
+		else if ( key.equals( "rememberUser" ) ) rememberUser = reader.readBoolean( rememberUser );
+		else if ( key.equals( "merchant" ) ) reader.readTable( fMerchant );
+		else if ( key.equals( "sandbox" ) ) reader.readTable( fSandbox );
+		else if ( key.equals( "user" ) ) reader.readTable( fUser );
+		else if ( key.equals( "verification" ) ) reader.readTable( fVerification );
+		else if ( key.equals( "tokenExchange" ) ) reader.readTable( fTokenExchange );
+		else return false;
+		return true;
+	}
+
+	// Keeps the default URL if the given value was not a string
+	private static String orDefault( String value, String defaultValue )
+	{
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * Compares these options with a previously applied set.
+	 * @param other The options to compare with, may be null.
+	 * @param includeEnvironment Whether the environment and client IDs are compared too.
+	 * @return Returns true if the compared options are all the same.
+	 */
+	public boolean sameAs( ConfigOptions other, boolean includeEnvironment )
+	{
+		if ( other == null )
+		{
+			return false;
+		}
+
+		// The environment and the client IDs it selects between
+		if ( includeEnvironment )
+		{
+			if ( equal( environment, other.environment ) == false ) return false;
+			if ( equal( productionClientID, other.productionClientID ) == false ) return false;
+			if ( equal( sandboxClientID, other.sandboxClientID ) == false ) return false;
+		}
+
+		// Everything else
+		return acceptCreditCards == other.acceptCreditCards &&
+			rememberUser == other.rememberUser &&
+			useSandboxDefaults == other.useSandboxDefaults &&
+			equal( language, other.language ) &&
+			equal( merchantName, other.merchantName ) &&
+			equal( merchantPrivacyPolicyURL, other.merchantPrivacyPolicyURL ) &&
+			equal( merchantUserAgreementURL, other.merchantUserAgreementURL ) &&
+			equal( sandboxPassword, other.sandboxPassword ) &&
+			equal( sandboxPin, other.sandboxPin ) &&
+			equal( email, other.email ) &&
+			equal( phoneNumber, other.phoneNumber ) &&
+			equal( phoneCountryCode, other.phoneCountryCode );
+	}
+
+	/**
+	 * Compares the verification and token exchange options with a previously applied set.
+	 * @param other The options to compare with, may be null.
+	 * @return Returns true if both servers are configured the same.
+	 */
+	public boolean sameServersAs( ConfigOptions other )
+	{
+		if ( other == null )
+		{
+			return false;
+		}
+		return verificationAttempts == other.verificationAttempts &&
+			verificationTimeout == other.verificationTimeout &&
+			equal( verificationURL, other.verificationURL ) &&
+			tokenExchangeRefreshMargin == other.tokenExchangeRefreshMargin &&
+			tokenExchangeTimeout == other.tokenExchangeTimeout &&
+			equal( tokenExchangeURL, other.tokenExchangeURL );
+	}
+
+	// Null safe string comparison
+	private static boolean equal( String a, String b )
+	{
+		return a == null ? b == null : a.equals( b );
+	}
+
+	/**
+	 * Reports missing required options to the reader.
+	 * @param reader The reader used to decode these options.
+	 */
+	public void validate( LuaOptionsReader reader )
+	{
+		if ( productionClientID == null ) reader.addError( "productionClientID expected, got nil" );
+		if ( sandboxClientID == null ) reader.addError( "sandboxClientID expected, got nil" );
+	}
+}
@@ -0,0 +1,154 @@
+//
+//  CurrencyTable.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+/**
+ * Immutable ISO 4217 currency index used to validate payments before any PayPal objects are built.
+ * <p>
+ * Three letter codes are mapped directly to a slot in a 26 x 26 x 26 table, so every code has its own
+ * slot and a lookup is a single array read with no hashing, boxing or collisions.
+ */
+public final class CurrencyTable
+{
+	// Value stored for codes that are not in the table
+	private static final byte UNKNOWN = 0;
+	// Flag set on currencies PayPal accepts
+	private static final byte SUPPORTED = 0x10;
+	// Mask for the number of minor units, stored plus one so zero means unknown
+	private static final byte MINOR_UNITS_MASK = 0x0F;
+
+	// Currencies PayPal accepts, with the number of decimals PayPal allows
+	// HUF and TWD have two ISO minor units but PayPal only accepts whole amounts for them
+	private static final String PAYPAL_CURRENCIES =
+		"AUD2 BRL2 CAD2 CHF2 CZK2 DKK2 EUR2 GBP2 HKD2 HUF0 ILS2 JPY0 MXN2 MYR2 NOK2 NZD2 " +
+		"PHP2 PLN2 RUB2 SEK2 SGD2 THB2 TRY2 TWD0 USD2";
+
+	// Other ISO 4217 currencies, with their minor units
+	private static final String OTHER_CURRENCIES =
+		"AED2 AFN2 ALL2 AMD2 ANG2 AOA2 ARS2 AWG2 AZN2 BAM2 BBD2 BDT2 BGN2 BHD3 BIF0 BMD2 " +
+		"BND2 BOB2 BSD2 BTN2 BWP2 BYR0 BZD2 CDF2 CLP0 CNY2 COP2 CRC2 CUP2 CVE2 DJF0 DOP2 " +
+		"DZD2 EGP2 ERN2 ETB2 FJD2 FKP2 GEL2 GHS2 GIP2 GMD2 GNF0 GTQ2 GYD2 HNL2 HRK2 HTG2 " +
+		"IDR2 INR2 IQD3 IRR2 ISK0 JMD2 JOD3 KES2 KGS2 KHR2 KMF0 KPW2 KRW0 KWD3 KYD2 KZT2 " +
+		"LAK2 LBP2 LKR2 LRD2 LSL2 LTL2 LYD3 MAD2 MDL2 MGA2 MKD2 MMK2 MNT2 MOP2 MRO2 MUR2 " +
+		"MVR2 MWK2 MZN2 NAD2 NGN2 NIO2 NPR2 OMR3 PAB2 PEN2 PGK2 PKR2 PYG0 QAR2 RON2 RSD2 " +
+		"RWF0 SAR2 SBD2 SCR2 SDG2 SHP2 SLL2 SOS2 SRD2 STD2 SYP2 SZL2 TJS2 TMT2 TND3 TOP2 " +
+		"TTD2 TZS2 UAH2 UGX0 UYU2 UZS2 VEF2 VND0 VUV0 WST2 XAF0 XCD2 XOF0 XPF0 YER2 ZAR2 " +
+		"ZMW2";
+
+	// The table, one slot per possible three letter code
+	private static final byte[] sTable = new byte[26 * 26 * 26];
+
+	// Fill the table, PayPal's own decimals win over the ISO ones
+	static
+	{
+		fill( OTHER_CURRENCIES, (byte)0 );
+		fill( PAYPAL_CURRENCIES, SUPPORTED );
+	}
+
+	// Not instantiable
+	private CurrencyTable()
+	{
+	}
+
+	/**
+	 * Gets whether a code is a known ISO 4217 currency.
+	 * @param code The upper case currency code.
+	 * @return Returns true if the code is known.
+	 */
+	public static boolean isKnown( String code )
+	{
+		return entryFor( code ) != UNKNOWN;
+	}
+
+	/**
+	 * Gets whether PayPal accepts payments in a currency.
+	 * @param code The upper case currency code.
+	 * @return Returns true if PayPal accepts the currency.
+	 */
+	public static boolean isSupported( String code )
+	{
+		return ( entryFor( code ) & SUPPORTED ) != 0;
+	}
+
+	/**
+	 * Gets the number of decimals allowed in amounts of a currency.
+	 * @param code The upper case currency code.
+	 * @return Returns the number of decimals, or -1 if the code is not known.
+	 */
+	public static int getMinorUnits( String code )
+	{
+		return ( entryFor( code ) & MINOR_UNITS_MASK ) - 1;
+	}
+
+	// Adds each "CODEn" entry of the list to the table
+	private static void fill( String list, byte flags )
+	{
+		for ( int i = 0; i + 4 <= list.length(); i += 5 )
+		{
+			// The slot of the code
+			int index = indexOf( list, i );
+
+			// Store the minor units plus one, with the flags
+			int minorUnits = list.charAt( i + 3 ) - '0';
+			sTable[index] = (byte)( flags | ( minorUnits + 1 ) );
+		}
+	}
+
+	// Maps the three letters at offset to a table slot, or -1 if they are not upper case A-Z
+	private static int indexOf( String code, int offset )
+	{
+		int index = 0;
+		for ( int i = offset; i < offset + 3; i++ )
+		{
+			// Each letter is a base 26 digit
+			int letter = code.charAt( i ) - 'A';
+			if ( letter < 0 || letter >= 26 )
+			{
+				return -1;
+			}
+			index = index * 26 + letter;
+		}
+		return index;
+	}
+
+	// Looks up the table entry for a code
+	private static byte entryFor( String code )
+	{
+		// Only three letter codes can be in the table
+		if ( code == null || code.length() != 3 )
+		{
+			return UNKNOWN;
+		}
+
+		int index = indexOf( code, 0 );
+		return index < 0 ? UNKNOWN : sTable[index];
+	}
+}
@@ -0,0 +1,227 @@
+//
+//  EventDispatcher.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaRuntime;
+import com.ansca.corona.CoronaRuntimeTask;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Android Imports
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The task dispatcher of a runtime's plugin context, sending bursts of events to the runtime as one task.
+ * <p>
+ * Events are queued without locking and sent, in order, as a single task up to one frame after the first of
+ * them. While the runtime is suspended they are held back and sent as a single task on resume. Listeners that
+ * opted in with <code>batch = true</code> get the events of a task for them in one call, as event.batch.
+ */
+public class EventDispatcher extends CoronaRuntimeTaskDispatcher
+{
+	// Longest an event waits for others to be sent with it, about one frame
+	private static final long FRAME_MILLIS = 16;
+	// Runs the flushes, on the UI thread
+	private static final Handler sMainHandler = new Handler( Looper.getMainLooper() );
+
+	// Tasks waiting to be sent, oldest first
+	private final ConcurrentLinkedQueue<CoronaRuntimeTask> fPending = new ConcurrentLinkedQueue<CoronaRuntimeTask>();
+	// Whether the runtime is suspended
+	private volatile boolean fSuspended = false;
+	// Whether a flush has been posted and not run yet
+	private final AtomicBoolean fFlushPosted = new AtomicBoolean( false );
+	// Keeps flushes from interleaving
+	private final Object fFlushLock = new Object();
+
+	// Sends the waiting tasks, a frame after the first of them
+	private final Runnable fFlushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			fFlushPosted.set( false );
+			if ( fSuspended == false )
+			{
+				flush();
+			}
+		}
+	};
+
+	/**
+	 * Creates a dispatcher for a runtime.
+	 * @param luaState The runtime's Lua state.
+	 */
+	public EventDispatcher( LuaState luaState )
+	{
+		super( luaState );
+	}
+
+	/**
+	 * Queues a task to be sent to the runtime with any others sent in the same frame.
+	 * @param task The task to send.
+	 */
+	@Override
+	public void send( CoronaRuntimeTask task )
+	{
+		fPending.offer( task );
+
+		// Hold it back until the runtime is resumed
+		if ( fSuspended )
+		{
+			Metrics.eventsHeld.increment();
+			return;
+		}
+
+		// Send it in a frame's time, with whatever else has come by then
+		if ( fFlushPosted.compareAndSet( false, true ) )
+		{
+			sMainHandler.postDelayed( fFlushTask, FRAME_MILLIS );
+		}
+	}
+
+	/**
+	 * Starts holding tasks back, for when the runtime has been suspended.
+	 */
+	public void suspend()
+	{
+		fSuspended = true;
+	}
+
+	/**
+	 * Stops holding tasks back and sends the held tasks, for when the runtime has been resumed.
+	 */
+	public void resume()
+	{
+		fSuspended = false;
+		flush( LuaRefManager.isSweepDue() );
+	}
+
+	// Sends every waiting task, as one task
+	private void flush()
+	{
+		flush( false );
+	}
+
+	// Sends every waiting task as one task, sending it even with no tasks to check the listeners for timeouts
+	private void flush( boolean always )
+	{
+		synchronized ( fFlushLock )
+		{
+			// Take the waiting tasks
+			ArrayList<CoronaRuntimeTask> tasks = new ArrayList<CoronaRuntimeTask>();
+			CoronaRuntimeTask task;
+			while ( ( task = fPending.poll() ) != null )
+			{
+				tasks.add( task );
+			}
+
+			// Send them
+			if ( tasks.isEmpty() == false )
+			{
+				Metrics.recordDispatch( tasks.size() );
+				super.send( new BatchTask( tasks ) );
+			}
+			else if ( always )
+			{
+				super.send( new BatchTask( tasks ) );
+			}
+		}
+	}
+
+	// Runs several tasks, in order, as one task
+	private static final class BatchTask implements CoronaRuntimeTask
+	{
+		// The tasks
+		private final ArrayList<CoronaRuntimeTask> fTasks;
+
+		// Creates the batch
+		BatchTask( ArrayList<CoronaRuntimeTask> tasks )
+		{
+			fTasks = tasks;
+		}
+
+		@Override
+		public void executeUsing( CoronaRuntime runtime )
+		{
+			// Let listeners that will never get an event time out, even if no new ones are being created
+			LuaState L = runtime.getLuaState();
+			LuaRefManager.sweepIfDue( L );
+
+			int count = fTasks.size();
+			for ( int i = 0; i < count; i++ )
+			{
+				CoronaRuntimeTask task = fTasks.get( i );
+				if ( task == null )
+				{
+					continue;
+				}
+
+				// A batched listener gets all of its events in the burst at once, where the first of them was
+				if ( task instanceof PayPalEventTask && ( (PayPalEventTask)task ).isBatched( L ) )
+				{
+					PayPalEventTask first = (PayPalEventTask)task;
+					ArrayList<PayPalEventTask> group = new ArrayList<PayPalEventTask>();
+					group.add( first );
+					for ( int j = i + 1; j < count; j++ )
+					{
+						CoronaRuntimeTask other = fTasks.get( j );
+						if ( other instanceof PayPalEventTask && ( (PayPalEventTask)other ).isBatched( L ) && first.hasListenerOf( (PayPalEventTask)other ) )
+						{
+							group.add( (PayPalEventTask)other );
+							fTasks.set( j, null );
+						}
+					}
+					PayPalEventTask.dispatchBatch( runtime, group );
+					continue;
+				}
+
+				// A failed task must not stop the ones after it
+				try
+				{
+					task.executeUsing( runtime );
+				}
+				catch ( RuntimeException ex )
+				{
+					PluginLog.error( "payPal, an event failed", ex );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+//
+//  InitOptions.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+
+/**
+ * The decoded options table passed to init() in Lua.
+ */
+public class InitOptions extends LuaOptions
+{
+	// The lua callback listener
+	public int listenerRef = CoronaLua.REFNIL;
+	// Whether to warm up the PayPal SDK in the background
+	public boolean prewarm = false;
+	// Whether to record trace spans of show() requests
+	public boolean trace = false;
+	// The lowest level logged, null to leave it unchanged
+	public String logLevel = null;
+	// The lua listener log messages are forwarded to
+	public int logListenerRef = CoronaLua.REFNIL;
+	// Whether the listener wants bursts of events as one event.batch
+	public boolean batch = false;
+	// Whether the listener handles the replay event, the journal is left alone if not
+	public boolean replay = false;
+
+	@Override
+	protected boolean onField( String key, LuaOptionsReader reader )
+	{
+		if ( key.equals( "listener" ) ) listenerRef = reader.readListener();
+		else if ( key.equals( "prewarm" ) ) prewarm = reader.readBoolean( prewarm );
+		else if ( key.equals( "trace" ) ) trace = reader.readBoolean( trace );
+		else if ( key.equals( "logLevel" ) ) logLevel = reader.readString();
+		else if ( key.equals( "logListener" ) ) logListenerRef = reader.readListener();
+		else if ( key.equals( "batch" ) ) batch = reader.readBoolean( batch );
+		else if ( key.equals( "replay" ) ) replay = reader.readBoolean( replay );
+		else return false;
+		return true;
+	}
+}
@@ -0,0 +1,90 @@
+//
+//  JniCallCounter.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls made into the Lua state (each one a JNI crossing) by the plugin's entry points.
+ * <p>
+ * Records both the call count of the most recent invocation and a running total per entry point.
+ */
+public class JniCallCounter
+{
+	// Entry points
+	public static final int INIT = 0;
+	public static final int CONFIG = 1;
+	public static final int SHOW = 2;
+
+	// Number of entry points
+	private static final int ENTRY_POINT_COUNT = 3;
+
+	// Calls made by the most recent invocation
+	private static final AtomicLongArray sLastCalls = new AtomicLongArray( ENTRY_POINT_COUNT );
+	// Total calls made
+	private static final AtomicLongArray sTotalCalls = new AtomicLongArray( ENTRY_POINT_COUNT );
+	// Number of invocations
+	private static final AtomicLongArray sInvocations = new AtomicLongArray( ENTRY_POINT_COUNT );
+
+	/**
+	 * Records the calls made by one invocation of an entry point.
+	 * @param entryPoint One of INIT, CONFIG or SHOW.
+	 * @param calls The number of calls made into the Lua state.
+	 */
+	public static void record( int entryPoint, int calls )
+	{
+		sLastCalls.set( entryPoint, calls );
+		sTotalCalls.addAndGet( entryPoint, calls );
+		sInvocations.incrementAndGet( entryPoint );
+	}
+
+	/**
+	 * Gets the number of calls made by the most recent invocation of an entry point.
+	 * @param entryPoint One of INIT, CONFIG or SHOW.
+	 * @return Returns the call count.
+	 */
+	public static long getLastCalls( int entryPoint )
+	{
+		return sLastCalls.get( entryPoint );
+	}
+
+	/**
+	 * Gets the average number of calls made per invocation of an entry point.
+	 * @param entryPoint One of INIT, CONFIG or SHOW.
+	 * @return Returns the average call count, or 0 if the entry point has not been invoked.
+	 */
+	public static double getAverageCalls( int entryPoint )
+	{
+		long invocations = sInvocations.get( entryPoint );
+		return invocations > 0 ? (double)sTotalCalls.get( entryPoint ) / invocations : 0;
+	}
+}
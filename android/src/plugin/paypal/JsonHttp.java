@@ -0,0 +1,168 @@
+//
+//  JsonHttp.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+// Java/Misc Imports
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Posts JSON to the app's own servers, for verification and token exchange.
+ * <p>
+ * Connections are reused through HttpURLConnection's keep-alive pool, so responses are always read to the end and
+ * connections are only disconnected after an I/O error.
+ */
+public class JsonHttp
+{
+	/**
+	 * Thrown when the server answers with an HTTP status other than 2xx.
+	 */
+	public static class StatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		// The HTTP status
+		private final int fStatus;
+
+		/**
+		 * Creates the exception.
+		 * @param status The HTTP status.
+		 */
+		public StatusException( int status )
+		{
+			super( "server returned HTTP " + status );
+			fStatus = status;
+		}
+
+		/**
+		 * Gets the HTTP status.
+		 * @return Returns the HTTP status.
+		 */
+		public int getStatus()
+		{
+			return fStatus;
+		}
+
+		/**
+		 * Checks if the request may succeed if it is tried again.
+		 * @return Returns true for server errors and rate limiting.
+		 */
+		public boolean isRetryable()
+		{
+			return fStatus >= 500 || fStatus == 429;
+		}
+	}
+
+	/**
+	 * Posts a JSON object and reads the JSON object the server answers with. Blocks, never call on the UI thread.
+	 * @param url The endpoint.
+	 * @param body The request body.
+	 * @param timeout The connect and read timeout in milliseconds.
+	 * @return Returns the response body.
+	 * @throws IOException If the request failed or the server answered with an HTTP status other than 2xx.
+	 * @throws JSONException If the response is not a JSON object.
+	 */
+	public static JSONObject post( URL url, JSONObject body, int timeout ) throws IOException, JSONException
+	{
+		byte[] bytes = body.toString().getBytes( "UTF-8" );
+
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		String text = null;
+		int status = 0;
+		try
+		{
+			connection.setRequestMethod( "POST" );
+			connection.setDoOutput( true );
+			connection.setConnectTimeout( timeout );
+			connection.setReadTimeout( timeout );
+			connection.setFixedLengthStreamingMode( bytes.length );
+			connection.setRequestProperty( "Content-Type", "application/json; charset=utf-8" );
+
+			OutputStream out = connection.getOutputStream();
+			try
+			{
+				out.write( bytes );
+			}
+			finally
+			{
+				out.close();
+			}
+
+			// Read the whole response, even for errors, which returns the connection to the keep-alive pool
+			status = connection.getResponseCode();
+			text = readFully( status < 400 ? connection.getInputStream() : connection.getErrorStream() );
+		}
+		catch ( IOException ex )
+		{
+			// The connection is in an unknown state, don't reuse it
+			connection.disconnect();
+			throw ex;
+		}
+
+		if ( status < 200 || status >= 300 )
+		{
+			throw new StatusException( status );
+		}
+		return new JSONObject( text );
+	}
+
+	// Reads a stream to the end as UTF-8 text
+	private static String readFully( InputStream in ) throws IOException
+	{
+		if ( in == null )
+		{
+			return "";
+		}
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ( ( count = in.read( buffer ) ) != -1 )
+			{
+				bytes.write( buffer, 0, count );
+			}
+			return bytes.toString( "UTF-8" );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+//
+//  LatencyHistogram.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram that can be recorded into from any thread without locking.
+ */
+public class LatencyHistogram
+{
+	// Upper bound of each bucket, in microseconds. The last bucket holds everything above.
+	private static final long[] BUCKET_BOUNDS_US =
+	{
+		50, 100, 250, 500, 1000, 2500, 5000, 10000, 16000, 25000, 50000, 100000, 250000, 500000, 1000000,
+		// Seconds to minutes, for how long a PayPal window stays open
+		2500000, 5000000, 10000000, 30000000, 60000000, 120000000, 300000000,
+	};
+
+	// Number of samples in each bucket
+	private final AtomicLongArray fCounts = new AtomicLongArray( BUCKET_BOUNDS_US.length + 1 );
+	// Total of all samples, in microseconds
+	private final AtomicLong fTotalUs = new AtomicLong();
+	// Largest sample, in microseconds
+	private final AtomicLong fMaxUs = new AtomicLong();
+
+	/**
+	 * Records a sample.
+	 * @param nanos The latency in nanoseconds.
+	 */
+	public void record( long nanos )
+	{
+		long us = nanos / 1000;
+		if ( us < 0 ) us = 0;
+
+		// Find the bucket
+		int bucket = 0;
+		while ( bucket < BUCKET_BOUNDS_US.length && us > BUCKET_BOUNDS_US[bucket] )
+		{
+			bucket++;
+		}
+		fCounts.incrementAndGet( bucket );
+		fTotalUs.addAndGet( us );
+
+		// Track the maximum
+		long max = fMaxUs.get();
+		while ( us > max && fMaxUs.compareAndSet( max, us ) == false )
+		{
+			max = fMaxUs.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since the given System.nanoTime() timestamp.
+	 * @param startNanos The start timestamp.
+	 */
+	public void recordSince( long startNanos )
+	{
+		record( System.nanoTime() - startNanos );
+	}
+
+	/**
+	 * Gets the number of samples recorded.
+	 * @return Returns the sample count.
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for ( int i = 0; i < fCounts.length(); i++ )
+		{
+			count += fCounts.get( i );
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the mean of all samples.
+	 * @return Returns the mean in microseconds, or 0 if nothing has been recorded.
+	 */
+	public long getMeanMicros()
+	{
+		long count = getCount();
+		return count > 0 ? fTotalUs.get() / count : 0;
+	}
+
+	/**
+	 * Gets the largest sample.
+	 * @return Returns the maximum in microseconds.
+	 */
+	public long getMaxMicros()
+	{
+		return fMaxUs.get();
+	}
+
+	/**
+	 * Gets an estimate of the given percentile, as the upper bound of the bucket it falls in.
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return Returns the percentile in microseconds, or 0 if nothing has been recorded.
+	 */
+	public long getPercentileMicros( double percentile )
+	{
+		long count = getCount();
+		if ( count == 0 )
+		{
+			return 0;
+		}
+
+		// Walk the buckets until we reach the rank we are after
+		long rank = (long)Math.ceil( count * percentile / 100.0 );
+		long seen = 0;
+		for ( int i = 0; i < BUCKET_BOUNDS_US.length; i++ )
+		{
+			seen += fCounts.get( i );
+			if ( seen >= rank )
+			{
+				return Math.min( BUCKET_BOUNDS_US[i], fMaxUs.get() );
+			}
+		}
+		return fMaxUs.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count=" + getCount() + " mean=" + getMeanMicros() + "us p50=" + getPercentileMicros( 50 ) + "us p99=" + getPercentileMicros( 99 ) + "us max=" + getMaxMicros() + "us";
+	}
+}
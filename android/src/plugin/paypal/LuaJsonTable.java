@@ -0,0 +1,158 @@
+//
+//  LuaJsonTable.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.Iterator;
+
+// JNLua imports
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+
+// Java/Misc Imports
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Pushes a JSON object onto the Lua stack as a native Lua table, so listeners don't have to json.decode() it.
+ * <p>
+ * The top level object is built straight away. Nested objects are pushed as empty tables whose metatable
+ * builds them from the JSON the first time one of their keys is read, after which the metatable is removed.
+ * Arrays are built straight away, with any objects inside them built lazily in the same way.
+ */
+public class LuaJsonTable implements JavaFunction
+{
+	// The JSON object this table is built from
+	private final JSONObject fObject;
+
+	// Create a lazy builder for the given object
+	private LuaJsonTable( JSONObject object )
+	{
+		fObject = object;
+	}
+
+	/**
+	 * Pushes the given JSON object onto the Lua stack as a table.
+	 * @param L The Lua state to push the table onto.
+	 * @param object The JSON object to push.
+	 */
+	public static void push( LuaState L, JSONObject object )
+	{
+		L.newTable( 0, object.length() );
+		fill( L, object );
+	}
+
+	/**
+	 * Called from Lua via the __index metamethod the first time a key of a nested table is read.
+	 * <p>
+	 * Fills the table (argument 1) from the JSON object, removes the metatable and returns the requested key (argument 2).
+	 * @param L The Lua state.
+	 * @return Returns 1, the value of the requested key.
+	 */
+	@Override
+	public int invoke( LuaState L )
+	{
+		// Fill the table and stop intercepting lookups
+		L.pushValue( 1 );
+		fill( L, fObject );
+		L.pushNil();
+		L.setMetatable( -2 );
+		L.pop( 1 );
+
+		// Return the requested value
+		L.pushValue( 2 );
+		L.rawGet( 1 );
+		return 1;
+	}
+
+	// Sets every key of the JSON object on the table at the top of the stack
+	private static void fill( LuaState L, JSONObject object )
+	{
+		Iterator<?> keys = object.keys();
+		while ( keys.hasNext() )
+		{
+			String key = (String)keys.next();
+			if ( pushValue( L, object.opt( key ) ) )
+			{
+				L.setField( -2, key );
+			}
+		}
+	}
+
+	// Pushes a JSON value, returns false (pushing nothing) for null values
+	private static boolean pushValue( LuaState L, Object value )
+	{
+		if ( value == null || value == JSONObject.NULL )
+		{
+			return false;
+		}
+
+		// Nested object, built the first time it is read
+		if ( value instanceof JSONObject )
+		{
+			JSONObject object = (JSONObject)value;
+			L.newTable( 0, object.length() );
+			L.newTable( 0, 1 );
+			L.pushJavaFunction( new LuaJsonTable( object ) );
+			L.setField( -2, "__index" );
+			L.setMetatable( -2 );
+		}
+		// Array
+		else if ( value instanceof JSONArray )
+		{
+			JSONArray array = (JSONArray)value;
+			L.newTable( array.length(), 0 );
+			for ( int i = 0; i < array.length(); i++ )
+			{
+				if ( pushValue( L, array.opt( i ) ) )
+				{
+					L.rawSet( -2, i + 1 );
+				}
+			}
+		}
+		// Boolean
+		else if ( value instanceof Boolean )
+		{
+			L.pushBoolean( ( (Boolean)value ).booleanValue() );
+		}
+		// Number
+		else if ( value instanceof Number )
+		{
+			L.pushNumber( ( (Number)value ).doubleValue() );
+		}
+		// Anything else is pushed as a string
+		else
+		{
+			L.pushString( value.toString() );
+		}
+		return true;
+	}
+}
@@ -95,7 +95,17 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 			new init(),
 			new config(),
 			new show(),
+			new getAccessToken(),
+			new getMetrics(),
+			new newCart(),
+			new getState(),
 		};
+		// Set up this runtime's context
+		PluginContext.get( L );
+
+		// Read back any confirmations a previous runtime never dispatched, they are replayed by init()
+		PaymentJournal.open();
+
 		String libName = L.toString( 1 );
 		L.register( libName, luaFunctions );
 
@@ -117,6 +127,9 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 		// This is because this listener cannot be added to the CoronaEnvironment until after
 		// this plugin has been required-in by Lua, which occurs after the onLoaded() event.
 		// However, this method will be called when a 2nd Corona activity has been created.
+
+		// Give the new runtime its own context, so it doesn't see the state of the last one
+		PluginContext.get( runtime.getLuaState() );
 	}
 
 	/**
@@ -141,6 +154,15 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 	@Override
 	public void onSuspended( CoronaRuntime runtime ) 
 	{
+		// Hold events back until the runtime is resumed, a runtime that never used the plugin has none
+		PluginContext context = PluginContext.find( runtime.getLuaState() );
+		if ( context != null )
+		{
+			context.getDispatcher().suspend();
+		}
+
+		// Write the trace spans out while the app may be killed
+		Tracer.flush();
 	}
 
 	/**
@@ -152,6 +174,12 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 	@Override
 	public void onResumed( CoronaRuntime runtime ) 
 	{
+		// Send the events held back while suspended, as one task
+		PluginContext context = PluginContext.find( runtime.getLuaState() );
+		if ( context != null )
+		{
+			context.getDispatcher().resume();
+		}
 	}
 
 	/**
@@ -167,19 +195,11 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener
 	@Override
 	public void onExiting( CoronaRuntime runtime ) 
 	{
-		// Corona Activity
-		CoronaActivity coronaActivity = null;
-		if ( CoronaEnvironment.getCoronaActivity() != null )
-		{
-			coronaActivity = CoronaEnvironment.getCoronaActivity();
-		}
+		// Write the trace spans out
+		Tracer.flush();
 
-		// If the corona activity is valid
-		if ( coronaActivity != null )
-		{
-			// Remove the handlers for the paypal show functions
-			coronaActivity.unregisterActivityResultHandler( show.futurePaymentRequestHandler );
-			coronaActivity.unregisterActivityResultHandler( show.paymentRequestHandler );
-		}
+		// Tear down this runtime's context, dropping its requests and log listener, unregistering its result handler
+		// and releasing the lua references it still holds
+		PluginContext.destroy( runtime.getLuaState() );
 	}
 }
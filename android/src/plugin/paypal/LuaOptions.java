@@ -0,0 +1,49 @@
+//
+//  LuaOptions.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+/**
+ * Base class for a typed options object that is filled in by a {@link LuaOptionsReader}.
+ * <p>
+ * Subclasses declare one Java field per supported Lua key and pick the value up in {@link #onField}.
+ */
+public abstract class LuaOptions
+{
+	/**
+	 * Called by the reader once for every string key found in the Lua table.
+	 * <p>
+	 * The value has already been decoded by the reader and must be read through its typed accessors.
+	 * @param key The Lua key.
+	 * @param reader The reader walking the table.
+	 * @return Returns true if the key is known to this options object, false otherwise.
+	 */
+	protected abstract boolean onField( String key, LuaOptionsReader reader );
+}
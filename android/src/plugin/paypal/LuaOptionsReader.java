@@ -0,0 +1,475 @@
+//
+//  LuaOptionsReader.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaType;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+
+/**
+ * Decodes a Lua options table into a {@link LuaOptions} object in a single pass.
+ * <p>
+ * Probing every supported key with getField() costs three to four JNI crossings per key, present or not.
+ * Instead, a small Lua function walks the table once with pairs() and packs every string key, its type and
+ * its value into one length-prefixed string, so decoding a table costs the same handful of crossings no
+ * matter how many keys it has. The packed string is then decoded in Java, and unknown keys and values of
+ * the wrong type are collected along the way.
+ * <p>
+ * Lengths in the packed string are Lua string lengths, which count bytes, so it is fetched and decoded as
+ * UTF-8 bytes rather than as a Java string.
+ * <p>
+ * Functions are not packed; listeners are fetched from the table directly when they are read.
+ * <p>
+ * Every call made into the Lua state is counted, so callers can report how many JNI crossings an entry point made.
+ */
+public class LuaOptionsReader
+{
+	// The Lua function used to pack a table into a string
+	private static final String PACKER_CHUNK =
+		"local type, tostring, pairs = type, tostring, pairs\n" +
+		"local function pack( t, out, depth )\n" +
+		"	for k, v in pairs( t ) do\n" +
+		"		if type( k ) == 'string' then\n" +
+		"			local tv = type( v )\n" +
+		"			out[#out + 1] = #k .. ':' .. k\n" +
+		"			if tv == 'string' then out[#out + 1] = 's' .. #v .. ':' .. v\n" +
+		"			elseif tv == 'number' then local n = tostring( v ) out[#out + 1] = 'n' .. #n .. ':' .. n\n" +
+		"			elseif tv == 'boolean' then out[#out + 1] = v and 'b1' or 'b0'\n" +
+		"			elseif tv == 'table' and depth < 4 then out[#out + 1] = 't' pack( v, out, depth + 1 ) out[#out + 1] = 'e'\n" +
+		"			else out[#out + 1] = 'o' .. #tv .. ':' .. tv end\n" +
+		"		end\n" +
+		"	end\n" +
+		"end\n" +
+		"return function( t ) local out = {} pack( t, out, 0 ) return table.concat( out ) end\n";
+
+	// The Lua state being read
+	private final LuaState fLuaState;
+	// The name of the Lua function, used in error messages
+	private final String fFunctionName;
+	// Number of calls made into the Lua state
+	private int fCallCount = 0;
+	// Stack index of the table being read
+	private int fTableIndex = 0;
+	// The packed table, as UTF-8 bytes
+	private byte[] fPacked = null;
+	// Read position in the packed table
+	private int fPosition = 0;
+	// Key path of the table being decoded (for nested tables)
+	private String fPath = "";
+	// The current key
+	private String fKey = null;
+	// The type of the current value
+	private LuaType fValueType = null;
+	// The type name of the current value, if it is not a string, number, boolean or table
+	private String fValueTypeName = null;
+	// The current value, if it is a string or number
+	private String fValue = null;
+	// Whether the current nested table was decoded by the options object
+	private boolean fTableRead = false;
+	// Errors found while decoding, created on first error
+	private ArrayList<String> fErrors = null;
+
+	/**
+	 * Creates a new reader.
+	 * @param luaState The Lua state to read from.
+	 * @param functionName The name of the Lua function being decoded, e.g. "payPal.config()".
+	 */
+	public LuaOptionsReader( LuaState luaState, String functionName )
+	{
+		fLuaState = luaState;
+		fFunctionName = functionName;
+	}
+
+	/**
+	 * Decodes the table at the given stack index into the options object.
+	 * <p>
+	 * The Lua stack is left as it was found.
+	 * @param index Stack index of the table, may be relative.
+	 * @param options The options object to fill in.
+	 * @return Returns false if the value at the index is not a table.
+	 */
+	public boolean read( int index, LuaOptions options )
+	{
+		// Resolve relative indices, as the stack will grow while packing
+		if ( index < 0 )
+		{
+			index = fLuaState.getTop() + index + 1;
+			fCallCount++;
+		}
+
+		// Make sure we have a table
+		fCallCount++;
+		if ( fLuaState.isTable( index ) == false )
+		{
+			return false;
+		}
+
+		// Pack the table
+		pushPacker();
+		fLuaState.pushValue( index );
+		fLuaState.call( 1, 1 );
+		byte[] packed = fLuaState.toByteArray( -1 );
+		fLuaState.pop( 1 );
+		fCallCount += 4;
+
+		// Decode it
+		fTableIndex = index;
+		decode( packed, options );
+
+		return true;
+	}
+
+	/**
+	 * Decodes a table that has already been packed by the Lua packer.
+	 * @param packed The packed table, as the UTF-8 bytes of the Lua string.
+	 * @param options The options object to fill in.
+	 */
+	void decode( byte[] packed, LuaOptions options )
+	{
+		fPacked = packed;
+		fPosition = 0;
+		decodeTable( options );
+		fPacked = null;
+	}
+
+	/**
+	 * Gets the Lua state being read.
+	 * @return Returns the Lua state.
+	 */
+	public LuaState getLuaState()
+	{
+		return fLuaState;
+	}
+
+	/**
+	 * Gets the type of the value currently being read.
+	 * @return Returns the Lua type of the current value, or null for types that are not packed.
+	 */
+	public LuaType getValueType()
+	{
+		return fValueType;
+	}
+
+	/**
+	 * Reads the current value as a string. Numbers are converted, as Lua would.
+	 * @return Returns the string, or null if the value is not a string.
+	 */
+	public String readString()
+	{
+		if ( fValueType == LuaType.STRING || fValueType == LuaType.NUMBER )
+		{
+			return fValue;
+		}
+		mistyped( "string" );
+		return null;
+	}
+
+	/**
+	 * Reads the current value as a boolean.
+	 * @param defaultValue The value to return if the current value is not a boolean.
+	 * @return Returns the boolean.
+	 */
+	public boolean readBoolean( boolean defaultValue )
+	{
+		if ( fValueType == LuaType.BOOLEAN )
+		{
+			return fValue == TRUE;
+		}
+		mistyped( "boolean" );
+		return defaultValue;
+	}
+
+	/**
+	 * Reads the current value as a number.
+	 * @param defaultValue The value to return if the current value is not a number.
+	 * @return Returns the number.
+	 */
+	public double readNumber( double defaultValue )
+	{
+		if ( fValueType == LuaType.NUMBER )
+		{
+			try
+			{
+				return Double.parseDouble( fValue );
+			}
+			catch ( NumberFormatException ex )
+			{
+				// Lua formats inf and nan differently to Java
+			}
+		}
+		mistyped( "number" );
+		return defaultValue;
+	}
+
+	/**
+	 * Reads the current value as a nested options table.
+	 * @param options The options object to fill in from the nested table.
+	 * @return Returns true if the value was a table.
+	 */
+	public boolean readTable( LuaOptions options )
+	{
+		if ( fValueType != LuaType.TABLE )
+		{
+			mistyped( "table" );
+			return false;
+		}
+
+		// Keep track of where we are, nested keys are reported as "parent.child"
+		String parentPath = fPath;
+		String parentKey = fKey;
+		fPath = parentPath + parentKey + ".";
+
+		decodeTable( options );
+		fTableRead = true;
+
+		// Restore the parent's state
+		fPath = parentPath;
+		fKey = parentKey;
+		fValueType = LuaType.TABLE;
+		return true;
+	}
+
+	/**
+	 * Reads the current value as a Lua listener and creates a registry reference to it.
+	 * <p>
+	 * Only supported for keys of the top level table.
+	 * @return Returns the new reference, or CoronaLua.REFNIL if the value is not a listener.
+	 */
+	public int readListener()
+	{
+		int ref = CoronaLua.REFNIL;
+
+		if ( fPath.length() == 0 )
+		{
+			// Fetch the listener from the table itself, functions are not packed
+			fLuaState.getField( fTableIndex, fKey );
+			fCallCount += 2;
+			if ( CoronaLua.isListener( fLuaState, -1, "payPal" ) )
+			{
+				ref = LuaRefManager.newRef( fLuaState, -1 );
+				fCallCount++;
+			}
+			fLuaState.pop( 1 );
+			fCallCount++;
+		}
+
+		if ( CoronaLua.REFNIL == ref )
+		{
+			mistyped( "listener" );
+		}
+		return ref;
+	}
+
+	/**
+	 * Adds calls made into the Lua state outside of this reader to the call count.
+	 * @param calls The number of calls made.
+	 */
+	public void countCalls( int calls )
+	{
+		fCallCount += calls;
+	}
+
+	/**
+	 * Gets the number of calls made into the Lua state.
+	 * @return Returns the call count.
+	 */
+	public int getCallCount()
+	{
+		return fCallCount;
+	}
+
+	/**
+	 * Adds an error, for example a missing required option.
+	 * @param message The error message.
+	 */
+	public void addError( String message )
+	{
+		if ( fErrors == null )
+		{
+			fErrors = new ArrayList<String>();
+		}
+		fErrors.add( message );
+	}
+
+	/**
+	 * Checks if any errors were found.
+	 * @return Returns true if there were errors.
+	 */
+	public boolean hasErrors()
+	{
+		return fErrors != null;
+	}
+
+	/**
+	 * Prints all errors found.
+	 */
+	public void printErrors()
+	{
+		if ( fErrors != null )
+		{
+			for ( int i = 0; i < fErrors.size(); i++ )
+			{
+				PluginLog.error( "{}, {}", fFunctionName, fErrors.get( i ) );
+			}
+		}
+	}
+
+	// Marker value for a packed `true`
+	private static final String TRUE = "true";
+	// Lua strings are passed through as UTF-8
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// Pushes the packer function, loading it into this runtime the first time
+	private void pushPacker()
+	{
+		PluginContext context = PluginContext.get( fLuaState );
+		if ( CoronaLua.REFNIL == context.packerRef )
+		{
+			fLuaState.load( PACKER_CHUNK, "=plugin.paypal.options" );
+			fLuaState.call( 0, 1 );
+			context.packerRef = fLuaState.ref( LuaState.REGISTRYINDEX );
+			fCallCount += 3;
+		}
+		fLuaState.rawGet( LuaState.REGISTRYINDEX, context.packerRef );
+		fCallCount++;
+	}
+
+	// Decodes packed key/value pairs until the end of the current table
+	private void decodeTable( LuaOptions options )
+	{
+		while ( fPosition < fPacked.length && fPacked[fPosition] != 'e' )
+		{
+			// The key
+			fKey = readPackedString();
+
+			// The value
+			byte type = fPacked[fPosition++];
+			fValue = null;
+			fValueTypeName = null;
+			fTableRead = false;
+			switch ( type )
+			{
+				case 's':
+					fValueType = LuaType.STRING;
+					fValue = readPackedString();
+					break;
+				case 'n':
+					fValueType = LuaType.NUMBER;
+					fValue = readPackedString();
+					break;
+				case 'b':
+					fValueType = LuaType.BOOLEAN;
+					fValue = fPacked[fPosition++] == '1' ? TRUE : null;
+					break;
+				case 't':
+					fValueType = LuaType.TABLE;
+					break;
+				default:
+					fValueType = null;
+					fValueTypeName = readPackedString();
+					break;
+			}
+
+			// Let the options object pick the value up
+			if ( options.onField( fKey, this ) == false )
+			{
+				addError( "unknown option `" + fPath + fKey + "`" );
+			}
+
+			// Skip over nested tables the options object did not decode
+			if ( type == 't' && fTableRead == false )
+			{
+				skipTable();
+			}
+			// Step over the end of a decoded nested table
+			else if ( type == 't' )
+			{
+				fPosition++;
+			}
+		}
+	}
+
+	// Skips a packed nested table, including its end marker
+	private void skipTable()
+	{
+		int depth = 1;
+		while ( depth > 0 && fPosition < fPacked.length )
+		{
+			// End of a table
+			if ( fPacked[fPosition] == 'e' )
+			{
+				fPosition++;
+				depth--;
+				continue;
+			}
+
+			// Key
+			readPackedString();
+
+			// Value
+			byte type = fPacked[fPosition++];
+			if ( type == 't' ) depth++;
+			else if ( type == 'b' ) fPosition++;
+			else readPackedString();
+		}
+	}
+
+	// Reads a "<length>:<bytes>" string from the packed table
+	private String readPackedString()
+	{
+		// The length, in bytes
+		int length = 0;
+		while ( fPacked[fPosition] != ':' )
+		{
+			length = length * 10 + ( fPacked[fPosition++] - '0' );
+		}
+		fPosition++;
+
+		// The string itself
+		String value = new String( fPacked, fPosition, length, UTF8 );
+		fPosition += length;
+		return value;
+	}
+
+	// Reports the current value as having the wrong type
+	private void mistyped( String expected )
+	{
+		String got = fValueType != null ? fValueType.displayText() : fValueTypeName;
+		addError( fPath + fKey + " " + expected + " expected, got " + got );
+	}
+}
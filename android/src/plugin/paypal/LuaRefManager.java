@@ -0,0 +1,373 @@
+//
+//  LuaRefManager.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+
+/**
+ * Keeps track of every Lua registry reference created by the plugin, so none outlive their use.
+ * <p>
+ * References are released when their event has been dispatched, when they time out because no result ever came
+ * back, and when the Corona runtime exits. Reference numbers are only unique within one Lua state, so each
+ * runtime's references are tracked in its own {@link PluginContext}. All methods that touch the Lua registry
+ * must be called on the thread of the given Lua state.
+ * <p>
+ * Lua hands a released reference number out again, so every reference also gets a generation. Whoever keeps a
+ * reference for later keeps its generation with it, and an event only goes to the listener if both still match.
+ */
+public class LuaRefManager
+{
+	/**
+	 * Told when a reference it owns has timed out, so it can stop using it.
+	 */
+	public interface Owner
+	{
+		/**
+		 * Called on the Lua thread just before the timed out reference is released.
+		 * @param ref The reference.
+		 */
+		void onRefExpired( int ref );
+	}
+
+	// A tracked reference
+	static final class Entry
+	{
+		// Tells this reference apart from earlier ones with the same number
+		final int fGeneration;
+		// When the reference was created
+		final long fCreatedNanos;
+		// Told when the reference times out, may be null
+		volatile Owner fOwner;
+		// Whether the reference is used for as long as the runtime lives, and never times out
+		volatile boolean fKept;
+		// Whether the listener wants the events of a burst together, as event.batch
+		volatile boolean fBatched;
+
+		Entry( int generation, long createdNanos )
+		{
+			fGeneration = generation;
+			fCreatedNanos = createdNanos;
+		}
+	}
+
+	// How long a reference may live before it is released
+	private static final long TIMEOUT_NANOS = 60L * 60L * 1000000000L;
+	// How often references are checked for timeouts
+	private static final long SWEEP_INTERVAL_NANOS = 60L * 1000000000L;
+
+	// When references are next checked for timeouts
+	private static volatile long sNextSweepNanos = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+	// Number of live references, in every runtime
+	private static final AtomicInteger sLive = new AtomicInteger();
+	// Source of reference generations, never 0
+	private static final AtomicInteger sNextGeneration = new AtomicInteger();
+
+	// Number of references created
+	private static final AtomicLong sCreated = new AtomicLong();
+	// Number of references released after use
+	private static final AtomicLong sReleased = new AtomicLong();
+	// Number of references released because they timed out
+	private static final AtomicLong sExpired = new AtomicLong();
+	// Number of references released because the runtime exited
+	private static final AtomicLong sAbandoned = new AtomicLong();
+
+	/**
+	 * Creates a tracked reference to a value on the Lua stack.
+	 * @param L The lua state.
+	 * @param index The stack index of the value.
+	 * @return Returns the reference.
+	 */
+	public static int newRef( LuaState L, int index )
+	{
+		// Check for timed out references first
+		sweepIfDue( L );
+
+		int ref = CoronaLua.newRef( L, index );
+		if ( CoronaLua.REFNIL != ref )
+		{
+			int generation;
+			do
+			{
+				generation = sNextGeneration.incrementAndGet();
+			}
+			while ( generation == 0 );
+			PluginContext.get( L ).refs.put( ref, new Entry( generation, System.nanoTime() ) );
+			sCreated.incrementAndGet();
+			sLive.incrementAndGet();
+		}
+		return ref;
+	}
+
+	/**
+	 * Gets the generation of a live reference, to be kept with the reference by whoever will send events to it.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 * @return Returns the generation, or 0 if the reference is not live.
+	 */
+	public static int getGeneration( LuaState L, int ref )
+	{
+		Entry entry = find( L, ref );
+		return entry != null ? entry.fGeneration : 0;
+	}
+
+	/**
+	 * Sets the owner that is told if a reference times out.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 * @param owner The owner.
+	 */
+	public static void setOwner( LuaState L, int ref, Owner owner )
+	{
+		Entry entry = find( L, ref );
+		if ( entry != null )
+		{
+			entry.fOwner = owner;
+		}
+	}
+
+	/**
+	 * Stops a reference from timing out, for a listener that is used for as long as the runtime lives.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 */
+	public static void keep( LuaState L, int ref )
+	{
+		Entry entry = find( L, ref );
+		if ( entry != null )
+		{
+			entry.fKept = true;
+		}
+	}
+
+	/**
+	 * Marks a listener as wanting the events of a burst in one call, as event.batch, rather than one call per event.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 */
+	public static void setBatched( LuaState L, int ref )
+	{
+		Entry entry = find( L, ref );
+		if ( entry != null )
+		{
+			entry.fBatched = true;
+		}
+	}
+
+	/**
+	 * Checks if a listener wants the events of a burst in one call.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 * @param generation The generation of the reference.
+	 * @return Returns true if the listener is live and was marked with setBatched().
+	 */
+	public static boolean isBatched( LuaState L, int ref, int generation )
+	{
+		Entry entry = find( L, ref );
+		return entry != null && entry.fGeneration == generation && entry.fBatched;
+	}
+
+	/**
+	 * Checks if a reference has not been released yet, and its number has not been handed out again since.
+	 * @param L The lua state.
+	 * @param ref The reference.
+	 * @param generation The generation of the reference.
+	 * @return Returns true if the reference is still live.
+	 */
+	public static boolean isLive( LuaState L, int ref, int generation )
+	{
+		Entry entry = find( L, ref );
+		return entry != null && entry.fGeneration == generation;
+	}
+
+	/**
+	 * Releases a reference after use. Releasing a reference that was already released does nothing.
+	 * @param L The lua state.
+	 * @param ref The reference, may be CoronaLua.REFNIL.
+	 */
+	public static void release( LuaState L, int ref )
+	{
+		PluginContext context = PluginContext.find( L );
+		if ( CoronaLua.REFNIL != ref && context != null && context.refs.remove( ref ) != null )
+		{
+			CoronaLua.deleteRef( L, ref );
+			sReleased.incrementAndGet();
+			sLive.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Releases a reference after use, unless its number has been handed out again since.
+	 * @param L The lua state.
+	 * @param ref The reference, may be CoronaLua.REFNIL.
+	 * @param generation The generation of the reference.
+	 */
+	public static void release( LuaState L, int ref, int generation )
+	{
+		if ( isLive( L, ref, generation ) )
+		{
+			release( L, ref );
+		}
+	}
+
+	/**
+	 * Releases the references of a lua state that have timed out, at most once per interval.
+	 * <p>
+	 * Called when references are created and when events are dispatched.
+	 * @param L The lua state.
+	 */
+	public static void sweepIfDue( LuaState L )
+	{
+		long now = System.nanoTime();
+		PluginContext context = PluginContext.find( L );
+		if ( context != null && now - sNextSweepNanos >= 0 )
+		{
+			sNextSweepNanos = now + SWEEP_INTERVAL_NANOS;
+			sweep( L, context.refs, now );
+		}
+	}
+
+	/**
+	 * Checks if it is time to check references for timeouts again.
+	 * @return Returns true if the next sweepIfDue() will sweep.
+	 */
+	static boolean isSweepDue()
+	{
+		return System.nanoTime() - sNextSweepNanos >= 0;
+	}
+
+	/**
+	 * Releases every reference of a runtime's context, for when the runtime is exiting.
+	 * @param context The context of the runtime.
+	 */
+	static void releaseAll( PluginContext context )
+	{
+		LuaState L = context.getLuaState();
+		Iterator<Map.Entry<Integer, Entry>> it = context.refs.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			Map.Entry<Integer, Entry> e = it.next();
+			it.remove();
+			if ( L.isOpen() )
+			{
+				CoronaLua.deleteRef( L, e.getKey() );
+			}
+			sAbandoned.incrementAndGet();
+			sLive.decrementAndGet();
+		}
+	}
+
+	// Looks up a tracked reference of a lua state
+	private static Entry find( LuaState L, int ref )
+	{
+		PluginContext context = PluginContext.find( L );
+		return context != null ? context.refs.get( ref ) : null;
+	}
+
+	// Releases the references of the lua state that have timed out
+	private static void sweep( LuaState L, ConcurrentHashMap<Integer, Entry> refs, long now )
+	{
+		Iterator<Map.Entry<Integer, Entry>> it = refs.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			Map.Entry<Integer, Entry> e = it.next();
+			Entry entry = e.getValue();
+			if ( entry.fKept == false && now - entry.fCreatedNanos > TIMEOUT_NANOS )
+			{
+				int ref = e.getKey();
+				if ( entry.fOwner != null )
+				{
+					entry.fOwner.onRefExpired( ref );
+				}
+				it.remove();
+				CoronaLua.deleteRef( L, ref );
+				sExpired.incrementAndGet();
+				sLive.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of live references.
+	 * @return Returns the number of references created and not yet released, in every runtime.
+	 */
+	public static int getLiveCount()
+	{
+		return sLive.get();
+	}
+
+	/**
+	 * Gets the number of references created.
+	 * @return Returns the number of references created since the app started.
+	 */
+	public static long getCreatedCount()
+	{
+		return sCreated.get();
+	}
+
+	/**
+	 * Gets the number of references released after use.
+	 * @return Returns the number of references released after their event was dispatched.
+	 */
+	public static long getReleasedCount()
+	{
+		return sReleased.get();
+	}
+
+	/**
+	 * Gets the number of references released because they timed out.
+	 * @return Returns the number of timed out references.
+	 */
+	public static long getExpiredCount()
+	{
+		return sExpired.get();
+	}
+
+	/**
+	 * Gets the number of references released because their runtime exited.
+	 * @return Returns the number of references released on exit.
+	 */
+	public static long getAbandonedCount()
+	{
+		return sAbandoned.get();
+	}
+}
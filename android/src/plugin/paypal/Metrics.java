@@ -0,0 +1,187 @@
+//
+//  Metrics.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLong;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+/**
+ * The plugin's counters and latency histograms, read by getMetrics().
+ * <p>
+ * Writers only touch atomics, so recording never blocks and a snapshot never stops a writer.
+ */
+public class Metrics
+{
+	// How long each entry point takes to run
+	public static final LatencyHistogram initDuration = new LatencyHistogram();
+	public static final LatencyHistogram configDuration = new LatencyHistogram();
+	public static final LatencyHistogram showDuration = new LatencyHistogram();
+	// How long a PayPal window stays open, from being started to its result
+	public static final LatencyHistogram paymentSheetDuration = new LatencyHistogram();
+	// How long the UI thread spends handling a PayPal window's result
+	public static final LatencyHistogram resultHandlerDuration = new LatencyHistogram();
+	// Time taken from an activity result arriving to its event being dispatched to Lua
+	public static final LatencyHistogram resultDispatchLatency = new LatencyHistogram();
+
+	// Number of windows shown
+	public static final StripedCounter paymentsShown = new StripedCounter();
+	public static final StripedCounter futurePaymentsShown = new StripedCounter();
+	// Results by outcome
+	public static final StripedCounter completed = new StripedCounter();
+	public static final StripedCounter canceled = new StripedCounter();
+	public static final StripedCounter failed = new StripedCounter();
+	// Payments that PayPal refused to show
+	public static final StripedCounter notProcessable = new StripedCounter();
+	// Events held back while the runtime was suspended
+	public static final StripedCounter eventsHeld = new StripedCounter();
+	// Tasks sent to the runtime, the events in them and the most events in one of them
+	private static final StripedCounter sDispatchTasks = new StripedCounter();
+	private static final StripedCounter sDispatchEvents = new StripedCounter();
+	private static final AtomicLong sLargestDispatch = new AtomicLong();
+
+	/**
+	 * Records a task sent to the runtime with a burst of events in it.
+	 * @param events The number of events in the task.
+	 */
+	public static void recordDispatch( int events )
+	{
+		sDispatchTasks.increment();
+		sDispatchEvents.add( events );
+
+		// Keep the largest burst
+		long largest = sLargestDispatch.get();
+		while ( events > largest && sLargestDispatch.compareAndSet( largest, events ) == false )
+		{
+			largest = sLargestDispatch.get();
+		}
+	}
+
+	/**
+	 * Pushes a snapshot of every metric onto the Lua stack as a table.
+	 * <p>
+	 * Durations are in milliseconds. Rates are between 0 and 1.
+	 * @param L The lua state.
+	 */
+	public static void push( LuaState L )
+	{
+		L.newTable( 0, 16 );
+
+		// Entry points
+		pushEntryPoint( L, "init", initDuration, JniCallCounter.INIT );
+		pushEntryPoint( L, "config", configDuration, JniCallCounter.CONFIG );
+		pushEntryPoint( L, "show", showDuration, JniCallCounter.SHOW );
+		pushNumber( L, "serviceStartsAvoided", paypal.serviceStartsAvoided.get() );
+
+		// Windows and their results
+		pushHistogram( L, "paymentSheet", paymentSheetDuration );
+		pushHistogram( L, "resultHandler", resultHandlerDuration );
+		pushHistogram( L, "resultDispatch", resultDispatchLatency );
+		long shown = paymentsShown.sum() + futurePaymentsShown.sum();
+		long completedCount = completed.sum();
+		long canceledCount = canceled.sum();
+		long failedCount = failed.sum();
+		long results = completedCount + canceledCount + failedCount;
+		long notProcessableCount = notProcessable.sum();
+		pushNumber( L, "paymentsShown", paymentsShown.sum() );
+		pushNumber( L, "futurePaymentsShown", futurePaymentsShown.sum() );
+		pushNumber( L, "completed", completedCount );
+		pushNumber( L, "canceled", canceledCount );
+		pushNumber( L, "failed", failedCount );
+		pushNumber( L, "notProcessable", notProcessableCount );
+		pushNumber( L, "cancellationRate", results > 0 ? (double)canceledCount / results : 0 );
+		pushNumber( L, "notProcessableRate", shown + notProcessableCount > 0 ? (double)notProcessableCount / ( shown + notProcessableCount ) : 0 );
+		pushNumber( L, "timeToFirstPaymentSheet", paypal.firstPaymentSheetNanos.get() / 1000000.0 );
+
+		// Resources held by the plugin
+		pushNumber( L, "requestsInFlight", PaymentRequest.getInFlightCount() );
+		pushNumber( L, "eventsHeld", eventsHeld.sum() );
+		L.newTable( 0, 4 );
+		long dispatchTasks = sDispatchTasks.sum();
+		pushNumber( L, "tasks", dispatchTasks );
+		pushNumber( L, "events", sDispatchEvents.sum() );
+		pushNumber( L, "eventsPerTask", dispatchTasks > 0 ? (double)sDispatchEvents.sum() / dispatchTasks : 0 );
+		pushNumber( L, "largest", sLargestDispatch.get() );
+		L.setField( -2, "dispatch" );
+		pushNumber( L, "requestsWaiting", PluginContext.get( L ).getWaiting().size() );
+		pushNumber( L, "resultRouters", ActivityResultRouter.getRegisteredCount() );
+		pushNumber( L, "journalPending", PaymentJournal.getPendingCount() );
+		pushNumber( L, "traceDropped", Tracer.getDroppedCount() );
+		pushNumber( L, "logDropped", PluginLog.getDroppedCount() );
+		pushNumber( L, "workerQueue", PluginWorkers.getQueuedCount() );
+		pushNumber( L, "ioQueue", PluginWorkers.getQueuedIOCount() );
+		pushNumber( L, "workerOverflow", PluginWorkers.getOverflowCount() );
+		L.newTable( 0, 5 );
+		pushNumber( L, "live", LuaRefManager.getLiveCount() );
+		pushNumber( L, "created", LuaRefManager.getCreatedCount() );
+		pushNumber( L, "released", LuaRefManager.getReleasedCount() );
+		pushNumber( L, "expired", LuaRefManager.getExpiredCount() );
+		pushNumber( L, "abandoned", LuaRefManager.getAbandonedCount() );
+		L.setField( -2, "refs" );
+	}
+
+	// Pushes the metrics of an entry point into the table on top of the stack
+	private static void pushEntryPoint( LuaState L, String name, LatencyHistogram histogram, int jniEntryPoint )
+	{
+		pushHistogramTable( L, histogram );
+		pushNumber( L, "jniCallsLast", JniCallCounter.getLastCalls( jniEntryPoint ) );
+		pushNumber( L, "jniCallsAverage", JniCallCounter.getAverageCalls( jniEntryPoint ) );
+		L.setField( -2, name );
+	}
+
+	// Pushes a histogram into the table on top of the stack
+	private static void pushHistogram( LuaState L, String name, LatencyHistogram histogram )
+	{
+		pushHistogramTable( L, histogram );
+		L.setField( -2, name );
+	}
+
+	// Pushes a new table summarizing a histogram
+	private static void pushHistogramTable( LuaState L, LatencyHistogram histogram )
+	{
+		L.newTable( 0, 8 );
+		pushNumber( L, "count", histogram.getCount() );
+		pushNumber( L, "mean", histogram.getMeanMicros() / 1000.0 );
+		pushNumber( L, "p50", histogram.getPercentileMicros( 50 ) / 1000.0 );
+		pushNumber( L, "p95", histogram.getPercentileMicros( 95 ) / 1000.0 );
+		pushNumber( L, "p99", histogram.getPercentileMicros( 99 ) / 1000.0 );
+		pushNumber( L, "max", histogram.getMaxMicros() / 1000.0 );
+	}
+
+	// Sets a number field of the table on top of the stack
+	private static void pushNumber( LuaState L, String key, double value )
+	{
+		L.pushNumber( value );
+		L.setField( -2, key );
+	}
+}
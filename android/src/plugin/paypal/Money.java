@@ -0,0 +1,234 @@
+//
+//  Money.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.math.BigDecimal;
+
+/**
+ * Exact money arithmetic on amounts held as a long number of minor units, e.g. cents.
+ * <p>
+ * Amounts stay as plain longs while a payment is checked and totalled, and are only turned into
+ * a BigDecimal when they are handed to PayPal.
+ */
+public final class Money
+{
+	/**
+	 * Returned in place of an amount that could not be parsed or calculated.
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	// Not instantiable
+	private Money()
+	{
+	}
+
+	/**
+	 * Parses a decimal string, such as "9.99", into minor units.
+	 * <p>
+	 * Trailing zeros past the scale are allowed, any other digits past it are not.
+	 * @param text The decimal string, with an optional leading minus sign.
+	 * @param scale The number of decimal places the currency has.
+	 * @return Returns the amount in minor units, or INVALID if the text is not a plain decimal
+	 *         number, has too many decimal places or does not fit in a long.
+	 */
+	public static long parse( String text, int scale )
+	{
+		// Nothing to parse
+		if ( text == null || scale < 0 )
+		{
+			return INVALID;
+		}
+
+		// Sign
+		int length = text.length();
+		int i = 0;
+		boolean negative = false;
+		if ( i < length && text.charAt( i ) == '-' )
+		{
+			negative = true;
+			i++;
+		}
+
+		// Digits, accumulated as a negative number so Long.MIN_VALUE + 1 is still reachable
+		long value = 0;
+		int digits = 0;
+		int decimals = -1;
+		for ( ; i < length; i++ )
+		{
+			char c = text.charAt( i );
+
+			// Decimal point, only one is allowed
+			if ( c == '.' )
+			{
+				if ( decimals >= 0 )
+				{
+					return INVALID;
+				}
+				decimals = 0;
+				continue;
+			}
+
+			// Anything else must be a digit
+			int digit = c - '0';
+			if ( digit < 0 || digit > 9 )
+			{
+				return INVALID;
+			}
+			digits++;
+
+			// Digits past the scale must be zero
+			if ( decimals >= 0 )
+			{
+				if ( decimals == scale )
+				{
+					if ( digit != 0 )
+					{
+						return INVALID;
+					}
+					continue;
+				}
+				decimals++;
+			}
+
+			// value = value * 10 - digit, checking for overflow
+			if ( value < ( INVALID + 1 + digit ) / 10 )
+			{
+				return INVALID;
+			}
+			value = value * 10 - digit;
+		}
+
+		// There must be at least one digit
+		if ( digits == 0 )
+		{
+			return INVALID;
+		}
+
+		// Pad out to the scale
+		for ( int d = decimals < 0 ? 0 : decimals; d < scale; d++ )
+		{
+			if ( value < ( INVALID + 1 ) / 10 )
+			{
+				return INVALID;
+			}
+			value *= 10;
+		}
+
+		return negative ? value : -value;
+	}
+
+	/**
+	 * Adds two amounts.
+	 * @param a The first amount in minor units.
+	 * @param b The second amount in minor units.
+	 * @return Returns the sum, or INVALID if either amount is INVALID or the sum overflows.
+	 */
+	public static long add( long a, long b )
+	{
+		// Invalid amounts stay invalid
+		if ( a == INVALID || b == INVALID )
+		{
+			return INVALID;
+		}
+
+		// Overflow if both operands have a different sign to the result
+		long sum = a + b;
+		if ( ( ( a ^ sum ) & ( b ^ sum ) ) < 0 || sum == INVALID )
+		{
+			return INVALID;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Subtracts one amount from another.
+	 * @param a The amount in minor units to subtract from.
+	 * @param b The amount in minor units to subtract.
+	 * @return Returns the difference, or INVALID if either amount is INVALID or the difference overflows.
+	 */
+	public static long subtract( long a, long b )
+	{
+		// INVALID can't be negated
+		if ( b == INVALID )
+		{
+			return INVALID;
+		}
+
+		return add( a, -b );
+	}
+
+	/**
+	 * Multiplies an amount by a quantity.
+	 * @param amount The amount in minor units.
+	 * @param quantity The quantity, zero or more.
+	 * @return Returns the product, or INVALID if the amount is INVALID or the product overflows.
+	 */
+	public static long multiply( long amount, int quantity )
+	{
+		// Invalid amounts stay invalid, and quantities can't be negative
+		if ( amount == INVALID || quantity < 0 )
+		{
+			return INVALID;
+		}
+
+		// Check the product fits before working it out
+		if ( quantity != 0 && ( amount > Long.MAX_VALUE / quantity || amount < ( INVALID + 1 ) / quantity ) )
+		{
+			return INVALID;
+		}
+
+		return amount * quantity;
+	}
+
+	/**
+	 * Compares two amounts.
+	 * @param a The first amount in minor units.
+	 * @param b The second amount in minor units.
+	 * @return Returns a negative number, zero or a positive number as a is less than, equal to or greater than b.
+	 */
+	public static int compare( long a, long b )
+	{
+		return a < b ? -1 : ( a == b ? 0 : 1 );
+	}
+
+	/**
+	 * Converts an amount to a BigDecimal for the PayPal SDK.
+	 * @param minorUnits The amount in minor units.
+	 * @param scale The number of decimal places the currency has.
+	 * @return Returns the exact decimal amount, e.g. 999 with a scale of 2 gives 9.99.
+	 */
+	public static BigDecimal toBigDecimal( long minorUnits, int scale )
+	{
+		return BigDecimal.valueOf( minorUnits, scale );
+	}
+}
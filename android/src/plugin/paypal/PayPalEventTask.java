@@ -0,0 +1,664 @@
+//
+//  PayPalEventTask.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.ArrayList;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+import com.ansca.corona.CoronaRuntime;
+import com.ansca.corona.CoronaRuntimeTask;
+
+// Java/Misc Imports
+import org.json.JSONObject;
+
+/**
+ * A recyclable task that dispatches one of the plugin's events to a Lua listener.
+ * <p>
+ * Tasks are taken from a small pool with {@link #obtain}, filled in, sent to the runtime and returned to the
+ * pool once they have run, so delivering an event does not allocate once the pool is warm.
+ */
+public class PayPalEventTask implements CoronaRuntimeTask
+{
+	// Event kinds
+	public static final int KIND_LICENSE = 0;
+	public static final int KIND_PAYMENT = 1;
+	public static final int KIND_FUTURE_PAYMENT = 2;
+	public static final int KIND_NOT_PROCESSABLE = 3;
+	public static final int KIND_READY = 4;
+	// Releases the listener without dispatching an event
+	public static final int KIND_RELEASE = 5;
+	// Confirmations from the journal that were never dispatched
+	public static final int KIND_REPLAY = 6;
+	public static final int KIND_ACCESS_TOKEN = 7;
+	// A batch of log messages
+	public static final int KIND_LOG = 8;
+
+	// Event states
+	public static final int STATE_NONE = 0;
+	public static final int STATE_COMPLETED = 1;
+	public static final int STATE_CANCELED = 2;
+	public static final int STATE_VALID = 3;
+
+	// Lua strings for each state
+	private static final String[] STATE_NAMES = { null, "completed", "canceled", "valid" };
+
+	// Maximum number of idle tasks kept for reuse
+	private static final int POOL_SIZE = 8;
+	// Idle tasks
+	private static final PayPalEventTask[] sPool = new PayPalEventTask[POOL_SIZE];
+	// Number of idle tasks
+	private static int sPoolCount = 0;
+
+	// The kind of event
+	int fKind;
+	// The state of the event
+	int fState;
+	// The lua listener registry id
+	int fLuaListenerRegistryId;
+	// The generation of the listener reference, see LuaRefManager
+	int fListenerGeneration;
+	// The show() request ID, 0 if the event is not for a show() request
+	int fRequestID;
+	// The journal entry of the event, 0 if it was not journaled
+	int fJournalId;
+	// The journaled events of a replay event
+	ArrayList<PayPalEventTask> fReplay;
+	// Whether the response is pushed as a table rather than a JSON string
+	boolean fResponseAsTable;
+	// Whether the listener is kept after dispatching, because more events will be sent to it
+	boolean fKeepListener;
+	// When the activity result arrived, 0 if the event is not an activity result
+	long fResultNanos;
+	// How long the work reported by the event took, or how long its access token is valid for
+	long fDurationNanos;
+	// The access token
+	String fAccessToken;
+	// Why the event failed, null if it didn't
+	String fError;
+	// The levels and messages of a log event
+	ArrayList<String> fLogLevels;
+	ArrayList<String> fLogMessages;
+	// The PayPal correlation ID
+	String fCorrelationID;
+	// The PayPal response
+	JSONObject fResponse;
+	// The server's verdict on the confirmation, null if it was not verified
+	JSONObject fVerification;
+	// Payment details
+	String fCurrencyCode;
+	String fAmount;
+	String fShortDescription;
+
+	// Tasks are created by obtain()
+	private PayPalEventTask()
+	{
+	}
+
+	/**
+	 * Takes a cleared task from the pool, or creates one if the pool is empty.
+	 * @param kind The kind of event.
+	 * @param state The state of the event.
+	 * @param luaListenerRegistryId The registry id of the Lua listener to dispatch to.
+	 * @param listenerGeneration The generation of the listener reference, from LuaRefManager.getGeneration().
+	 * @return Returns the task.
+	 */
+	public static PayPalEventTask obtain( int kind, int state, int luaListenerRegistryId, int listenerGeneration )
+	{
+		PayPalEventTask task = null;
+		synchronized ( sPool )
+		{
+			if ( sPoolCount > 0 )
+			{
+				task = sPool[--sPoolCount];
+				sPool[sPoolCount] = null;
+			}
+		}
+		if ( task == null )
+		{
+			task = new PayPalEventTask();
+		}
+
+		task.fKind = kind;
+		task.fState = state;
+		task.fLuaListenerRegistryId = luaListenerRegistryId;
+		task.fListenerGeneration = listenerGeneration;
+		return task;
+	}
+
+	/**
+	 * Sets the ID of the show() request the event is for.
+	 * @param requestID The request ID returned to Lua by show().
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setRequestID( int requestID )
+	{
+		fRequestID = requestID;
+		return this;
+	}
+
+	/**
+	 * Sets the journal entry of the event, acknowledged once the event has been dispatched.
+	 * @param journalId The journal entry id.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setJournalId( int journalId )
+	{
+		fJournalId = journalId;
+		return this;
+	}
+
+	/**
+	 * Sets the journaled events of a replay event.
+	 * @param replay The events, each acknowledged once the replay event has been dispatched.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setReplay( ArrayList<PayPalEventTask> replay )
+	{
+		fReplay = replay;
+		return this;
+	}
+
+	/**
+	 * Sets the details of a completed payment or future payment.
+	 * @param correlationID The PayPal application correlation ID.
+	 * @param response The PayPal response.
+	 * @param responseAsTable Whether the response is pushed as a table rather than a JSON string.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setResponse( String correlationID, JSONObject response, boolean responseAsTable )
+	{
+		fCorrelationID = correlationID;
+		fResponse = response;
+		fResponseAsTable = responseAsTable;
+		return this;
+	}
+
+	/**
+	 * Sets the details of an access token event.
+	 * @param correlationID The PayPal application correlation ID the token belongs to.
+	 * @param accessToken The access token, null if there is none.
+	 * @param expiresInNanos How long the token is valid for.
+	 * @param error Why there is no token, null if there is one.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setAccessToken( String correlationID, String accessToken, long expiresInNanos, String error )
+	{
+		fCorrelationID = correlationID;
+		fAccessToken = accessToken;
+		fDurationNanos = expiresInNanos;
+		fError = error;
+		return this;
+	}
+
+	/**
+	 * Sets the messages of a log event.
+	 * @param levels The level name of each message.
+	 * @param messages The messages, oldest first.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setLog( ArrayList<String> levels, ArrayList<String> messages )
+	{
+		fLogLevels = levels;
+		fLogMessages = messages;
+		return this;
+	}
+
+	/**
+	 * Sets the server's verdict on the confirmation.
+	 * @param verification The verdict, pushed to Lua as a table.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setVerification( JSONObject verification )
+	{
+		fVerification = verification;
+		return this;
+	}
+
+	/**
+	 * Sets the details of a completed payment.
+	 * @param currencyCode The currency code of the payment.
+	 * @param amount The payment amount.
+	 * @param shortDescription The description of the payment.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setPaymentDetails( String currencyCode, String amount, String shortDescription )
+	{
+		fCurrencyCode = currencyCode;
+		fAmount = amount;
+		fShortDescription = shortDescription;
+		return this;
+	}
+
+	/**
+	 * Sets when the activity result arrived, to measure how long it takes to reach Lua.
+	 * @param resultNanos The System.nanoTime() timestamp of the activity result.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setResultTime( long resultNanos )
+	{
+		fResultNanos = resultNanos;
+		return this;
+	}
+
+	/**
+	 * Sets how long the work reported by the event took.
+	 * @param durationNanos The duration in nanoseconds.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask setDuration( long durationNanos )
+	{
+		fDurationNanos = durationNanos;
+		return this;
+	}
+
+	/**
+	 * Keeps the listener's registry reference after dispatching, because more events will be sent to it.
+	 * @return Returns this task.
+	 */
+	public PayPalEventTask keepListener()
+	{
+		fKeepListener = true;
+		return this;
+	}
+
+	@Override
+	public void executeUsing( CoronaRuntime runtime )
+	{
+		try 
+		{
+			// Fetch the Corona runtime's Lua state.
+			final LuaState L = runtime.getLuaState();
+
+			// Nothing to dispatch, just free the listener
+			if ( fKind == KIND_RELEASE )
+			{
+				LuaRefManager.release( L, fLuaListenerRegistryId, fListenerGeneration );
+			}
+			// Nobody to deliver the event to, it doesn't need replaying
+			else if ( CoronaLua.REFNIL == fLuaListenerRegistryId )
+			{
+				acknowledge();
+			}
+			// Dispatch the lua callback, unless the listener has timed out and its reference been handed out again
+			else if ( CoronaLua.REFNIL != fLuaListenerRegistryId && LuaRefManager.isLive( L, fLuaListenerRegistryId, fListenerGeneration ) )
+			{
+				// Push the event
+				pushEvent( L );
+				onPushed();
+
+				// Dispatch the event
+				CoronaLua.dispatchEvent( L, fLuaListenerRegistryId, 0 );
+				onDelivered();
+
+				// Free native reference to the listener
+				if ( fKeepListener == false )
+				{
+					LuaRefManager.release( L, fLuaListenerRegistryId, fListenerGeneration );
+				}
+			}
+		}
+		catch ( Exception ex ) 
+		{
+			PluginLog.error( "payPal, could not dispatch an event", ex );
+		}
+		finally
+		{
+			recycle();
+		}
+	}
+
+	/**
+	 * Checks if this task's event goes to a listener that wants bursts of events as one event.batch.
+	 * @param L The lua state of the runtime the task is executed in.
+	 * @return Returns true if the event can be delivered with others by dispatchBatch().
+	 */
+	public boolean isBatched( LuaState L )
+	{
+		return fKind != KIND_RELEASE && CoronaLua.REFNIL != fLuaListenerRegistryId && LuaRefManager.isBatched( L, fLuaListenerRegistryId, fListenerGeneration );
+	}
+
+	/**
+	 * Checks if two tasks send their events to the same listener.
+	 * @param other The other task.
+	 * @return Returns true if both tasks have the same listener.
+	 */
+	public boolean hasListenerOf( PayPalEventTask other )
+	{
+		return fLuaListenerRegistryId == other.fLuaListenerRegistryId && fListenerGeneration == other.fListenerGeneration;
+	}
+
+	/**
+	 * Dispatches the events of several tasks for the same batched listener as one "batch" event,
+	 * with the events in order in event.batch, then recycles the tasks.
+	 * @param runtime The Corona runtime.
+	 * @param tasks The tasks, all with the same listener.
+	 */
+	public static void dispatchBatch( CoronaRuntime runtime, ArrayList<PayPalEventTask> tasks )
+	{
+		try
+		{
+			// Fetch the Corona runtime's Lua state.
+			final LuaState L = runtime.getLuaState();
+			int ref = tasks.get( 0 ).fLuaListenerRegistryId;
+			int generation = tasks.get( 0 ).fListenerGeneration;
+
+			// Dispatch the lua callback, unless the listener has timed out
+			if ( LuaRefManager.isLive( L, ref, generation ) )
+			{
+				// Push the batch event, with every event in it
+				CoronaLua.newEvent( L, "batch" );
+				L.newTable( tasks.size(), 0 );
+				for ( int i = 0; i < tasks.size(); i++ )
+				{
+					tasks.get( i ).pushEvent( L );
+					tasks.get( i ).onPushed();
+					L.rawSet( -2, i + 1 );
+				}
+				L.setField( -2, "batch" );
+
+				// Dispatch the event
+				CoronaLua.dispatchEvent( L, ref, 0 );
+
+				// Free native reference to the listener if any task was its last event, as it would be one task at a time
+				boolean keepListener = true;
+				for ( int i = 0; i < tasks.size(); i++ )
+				{
+					tasks.get( i ).onDelivered();
+					keepListener &= tasks.get( i ).fKeepListener;
+				}
+				if ( keepListener == false )
+				{
+					LuaRefManager.release( L, ref, generation );
+				}
+			}
+		}
+		catch ( Exception ex ) 
+		{
+			PluginLog.error( "payPal, could not dispatch a batch of events", ex );
+		}
+		finally
+		{
+			for ( int i = 0; i < tasks.size(); i++ )
+			{
+				tasks.get( i ).recycle();
+			}
+		}
+	}
+
+	// Records the time from the activity result to the event being pushed
+	private void onPushed()
+	{
+		if ( fResultNanos != 0 )
+		{
+			Metrics.resultDispatchLatency.recordSince( fResultNanos );
+		}
+	}
+
+	// Traces the time from the activity result to the listener returning, and acknowledges the event
+	private void onDelivered()
+	{
+		if ( fRequestID != 0 && fResultNanos != 0 && Tracer.isEnabled() )
+		{
+			Tracer.record( fRequestID, Tracer.SPAN_LUA_DISPATCH, fResultNanos, System.nanoTime() );
+		}
+
+		// The event has been delivered, it doesn't need replaying
+		acknowledge();
+	}
+
+	// Acknowledges the journal entries of this task
+	private void acknowledge()
+	{
+		PaymentJournal.acknowledge( fJournalId );
+		if ( fReplay != null )
+		{
+			for ( int i = 0; i < fReplay.size(); i++ )
+			{
+				PaymentJournal.acknowledge( fReplay.get( i ).fJournalId );
+			}
+		}
+	}
+
+	// Pushes the event table for this task
+	private void pushEvent( LuaState L )
+	{
+		switch ( fKind )
+		{
+			case KIND_LICENSE:
+				// Setup the event
+				CoronaLua.newEvent( L, "license" );
+
+				// Event type
+				L.pushString( "check" );
+				L.setField( -2, "type" );
+
+				// Status
+				L.pushString( STATE_NAMES[fState] );
+				L.setField( -2, "status" );
+				break;
+
+			case KIND_READY:
+				// Setup the event
+				CoronaLua.newEvent( L, "ready" );
+
+				// How long the warm up took, in milliseconds
+				L.pushNumber( fDurationNanos / 1000000.0 );
+				L.setField( -2, "duration" );
+				break;
+
+			case KIND_ACCESS_TOKEN:
+				// Setup the event
+				CoronaLua.newEvent( L, "accessToken" );
+
+				// PayPal correlation ID
+				L.pushString( fCorrelationID );
+				L.setField( -2, "correlationID" );
+
+				// The token and how many seconds it is valid for
+				if ( fAccessToken != null )
+				{
+					L.pushString( fAccessToken );
+					L.setField( -2, "accessToken" );
+					L.pushNumber( fDurationNanos / 1000000000.0 );
+					L.setField( -2, "expiresIn" );
+				}
+				// Why there is no token
+				else
+				{
+					L.pushBoolean( true );
+					L.setField( -2, "isError" );
+					L.pushString( fError );
+					L.setField( -2, "errorMessage" );
+				}
+				break;
+
+			case KIND_LOG:
+				// Setup the event
+				CoronaLua.newEvent( L, "log" );
+
+				// The messages, oldest first
+				L.newTable( fLogMessages.size(), 0 );
+				for ( int i = 0; i < fLogMessages.size(); i++ )
+				{
+					L.newTable( 0, 2 );
+					L.pushString( fLogLevels.get( i ) );
+					L.setField( -2, "level" );
+					L.pushString( fLogMessages.get( i ) );
+					L.setField( -2, "message" );
+					L.rawSet( -2, i + 1 );
+				}
+				L.setField( -2, "entries" );
+				break;
+
+			case KIND_REPLAY:
+				// Setup the event
+				CoronaLua.newEvent( L, "replay" );
+
+				// The payment and future payment events, oldest first
+				L.newTable( fReplay.size(), 0 );
+				for ( int i = 0; i < fReplay.size(); i++ )
+				{
+					fReplay.get( i ).pushEvent( L );
+					L.rawSet( -2, i + 1 );
+				}
+				L.setField( -2, "events" );
+				break;
+
+			case KIND_NOT_PROCESSABLE:
+				// Setup the event
+				CoronaLua.newEvent( L, "paymentConfirmation" );
+
+				// Event type
+				L.pushString( "payment" );
+				L.setField( -2, "type" );
+
+				// Status
+				L.pushBoolean( false );
+				L.setField( -2, "isProcessable" );
+
+				// The show() request ID
+				L.pushInteger( fRequestID );
+				L.setField( -2, "requestID" );
+				break;
+
+			default:
+				// Setup the event
+				CoronaLua.newEvent( L, fKind == KIND_PAYMENT ? "payment" : "futurePayment" );
+
+				// Event state
+				L.pushString( STATE_NAMES[fState] );
+				L.setField( -2, "state" );
+
+				// The show() request ID
+				L.pushInteger( fRequestID );
+				L.setField( -2, "requestID" );
+
+				// PayPal correlation ID
+				if ( fCorrelationID != null )
+				{
+					L.pushString( fCorrelationID );
+					L.setField( -2, "correlationID" );
+				}
+
+				// PayPal Json response
+				if ( fResponse != null )
+				{
+					// Push the response as a table
+					if ( fResponseAsTable )
+					{
+						LuaJsonTable.push( L, fResponse );
+					}
+					// Push the JSON string
+					else
+					{
+						L.pushString( fResponse.toString() );
+					}
+					L.setField( -2, "response" );
+				}
+
+				// Server verification
+				if ( fVerification != null )
+				{
+					LuaJsonTable.push( L, fVerification );
+					L.setField( -2, "verification" );
+				}
+
+				// Currency code
+				if ( fCurrencyCode != null )
+				{
+					L.pushString( fCurrencyCode );
+					L.setField( -2, "currencyCode" );
+				}
+
+				// Amount
+				if ( fAmount != null )
+				{
+					L.pushString( fAmount );
+					L.setField( -2, "amount" );
+				}
+
+				// Short description
+				if ( fShortDescription != null )
+				{
+					L.pushString( fShortDescription );
+					L.setField( -2, "shortDescription" );
+				}
+				break;
+		}
+	}
+
+	// Clears this task and returns it to the pool
+	private void recycle()
+	{
+		// Reset every field, so nothing is kept alive by an idle task
+		fKind = KIND_LICENSE;
+		fState = STATE_NONE;
+		fLuaListenerRegistryId = CoronaLua.REFNIL;
+		fListenerGeneration = 0;
+		fRequestID = 0;
+		fJournalId = 0;
+		if ( fReplay != null )
+		{
+			for ( int i = 0; i < fReplay.size(); i++ )
+			{
+				fReplay.get( i ).recycle();
+			}
+			fReplay = null;
+		}
+		fResponseAsTable = false;
+		fKeepListener = false;
+		fResultNanos = 0;
+		fDurationNanos = 0;
+		fAccessToken = null;
+		fError = null;
+		fLogLevels = null;
+		fLogMessages = null;
+		fCorrelationID = null;
+		fResponse = null;
+		fVerification = null;
+		fCurrencyCode = null;
+		fAmount = null;
+		fShortDescription = null;
+
+		synchronized ( sPool )
+		{
+			if ( sPoolCount < POOL_SIZE )
+			{
+				sPool[sPoolCount++] = this;
+			}
+		}
+	}
+}
@@ -0,0 +1,563 @@
+//
+//  PaymentJournal.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaEnvironment;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc Imports
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A crash safe journal of PayPal payment confirmations and future payment authorizations.
+ * <p>
+ * Every confirmation is appended to a memory mapped file before its event is sent to Lua, and acknowledged once
+ * the event has been dispatched. Confirmations that were never acknowledged, because the runtime was torn down
+ * in between, stay in the journal until an init() listener that opted in with <code>replay = true</code> has
+ * been sent them in one replay event.
+ * <p>
+ * The file starts with a magic number followed by records of the form
+ * <code>type, id, length, payload, crc32</code>. Reading stops at the first record that is empty or whose
+ * checksum doesn't match, which is where a write was cut off. Writes happen on the journal's own thread.
+ */
+public class PaymentJournal
+{
+	// The journal file name, in the app's files directory
+	private static final String FILE_NAME = "plugin.paypal.journal";
+	// Magic number at the start of the file, "PPJ1"
+	private static final int MAGIC = 0x50504A31;
+	// Record types
+	private static final int RECORD_ENTRY = 1;
+	private static final int RECORD_ACK = 2;
+	// Bytes used by a record besides its payload
+	private static final int RECORD_OVERHEAD = 16;
+	// Initial size of the mapped file
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	// Largest payload accepted, anything bigger is treated as a cut off write
+	private static final int MAX_PAYLOAD = 1024 * 1024;
+
+	// A confirmation that has not been acknowledged yet
+	private static final class Pending
+	{
+		// The entry id
+		final int fId;
+		// The encoded event
+		final byte[] fPayload;
+		// The lua state the event was sent to, null if it was loaded from disk
+		LuaState fLuaState;
+
+		Pending( int id, byte[] payload, LuaState luaState )
+		{
+			fId = id;
+			fPayload = payload;
+			fLuaState = luaState;
+		}
+	}
+
+	// Runs every file write, one at a time and in order
+	private static final Executor sWriter = PluginWorkers.newSerialExecutor();
+
+	// Unacknowledged entries, oldest first, guarded by sLock
+	private static final LinkedHashMap<Integer, Pending> sPending = new LinkedHashMap<Integer, Pending>();
+	// The number of unacknowledged entries, updated with sPending so it can be read without waiting for the writer
+	private static final AtomicInteger sPendingCount = new AtomicInteger();
+	// Guards the fields below
+	private static final Object sLock = new Object();
+	// The journal file, null until opened
+	private static File sFile = null;
+	// The mapped file
+	private static MappedByteBuffer sBuffer = null;
+	// The next entry id
+	private static int sNextId = 1;
+	// Counted down once the journal has been read, null until open() is called
+	private static final AtomicReference<CountDownLatch> sOpened = new AtomicReference<CountDownLatch>();
+
+	/**
+	 * Opens the journal and reads the entries that were never acknowledged, if it hasn't been opened yet.
+	 * <p>
+	 * Called when the plugin is required, so confirmations lost by a previous runtime are ready to replay.
+	 * The file is read and compacted on the journal writer, takeReplay() waits for it.
+	 */
+	public static void open()
+	{
+		open( new File( CoronaEnvironment.getApplicationContext().getFilesDir(), FILE_NAME ) );
+	}
+
+	/**
+	 * Opens the given journal file, see {@link #open()}.
+	 * @param file The journal file, created if it doesn't exist.
+	 */
+	static void open( final File file )
+	{
+		// Only the first runtime to require the plugin opens the journal
+		final CountDownLatch opened = new CountDownLatch( 1 );
+		if ( sOpened.compareAndSet( null, opened ) == false )
+		{
+			return;
+		}
+
+		// Read the file and rewrite it with just the pending entries, off the Lua thread
+		sWriter.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					synchronized ( sLock )
+					{
+						try
+						{
+							if ( file.exists() )
+							{
+								read( file );
+								sPendingCount.set( sPending.size() );
+							}
+							sFile = file;
+						}
+						catch ( Exception ex )
+						{
+							// Leave the file alone and run without a journal
+							PluginLog.error( "payPal journal, could not be read", ex );
+							return;
+						}
+						compact( 0 );
+					}
+				}
+				finally
+				{
+					opened.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the journal and its entries, so a journal file can be opened again.
+	 * <p>
+	 * The file itself is left alone. Only meant for tests, the plugin keeps its journal open for the life of the process.
+	 */
+	static void close()
+	{
+		synchronized ( sLock )
+		{
+			sPending.clear();
+			sPendingCount.set( 0 );
+			sFile = null;
+			sBuffer = null;
+			sNextId = 1;
+		}
+		sOpened.set( null );
+	}
+
+	/**
+	 * Waits for the journal writer to finish everything queued on it so far.
+	 * <p>
+	 * Only meant for tests, which check the file once the writer is done with it.
+	 */
+	static void awaitWriter() throws InterruptedException
+	{
+		final CountDownLatch done = new CountDownLatch( 1 );
+		sWriter.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				done.countDown();
+			}
+		});
+		done.await();
+	}
+
+	/**
+	 * Appends a confirmation to the journal on the journal writer, then sends its task through the verifier.
+	 * <p>
+	 * The task is sent even if the journal can't be written, the event matters more than its backup.
+	 * @param task The payment or future payment task.
+	 * @param luaState The lua state the task is sent to.
+	 * @param dispatcher The dispatcher to send the task with.
+	 */
+	public static void appendThenSend( final PayPalEventTask task, final LuaState luaState, final CoronaRuntimeTaskDispatcher dispatcher )
+	{
+		sWriter.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					byte[] payload = encode( task ).toString().getBytes( "UTF-8" );
+					synchronized ( sLock )
+					{
+						if ( sFile != null )
+						{
+							int id = sNextId++;
+							if ( append( RECORD_ENTRY, id, payload ) )
+							{
+								sPending.put( id, new Pending( id, payload, luaState ) );
+								sPendingCount.set( sPending.size() );
+								task.setJournalId( id );
+							}
+						}
+					}
+				}
+				catch ( Exception ex )
+				{
+					PluginLog.error( "payPal journal, could not be written", ex );
+				}
+
+				// Verify the confirmation if the app asked for it, then send it to the Corona runtime
+				PaymentVerifier.send( task, dispatcher );
+			}
+		});
+	}
+
+	/**
+	 * Acknowledges an entry once its event has been dispatched, so it is never replayed.
+	 * @param id The entry id, 0 does nothing.
+	 */
+	public static void acknowledge( final int id )
+	{
+		if ( id == 0 )
+		{
+			return;
+		}
+
+		sWriter.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized ( sLock )
+				{
+					if ( sPending.remove( id ) != null )
+					{
+						sPendingCount.set( sPending.size() );
+						append( RECORD_ACK, id, new byte[0] );
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes the entries that are waiting to be replayed to a Lua state, marking them as sent to it.
+	 * <p>
+	 * Those are the entries read from disk and the entries sent to a runtime that has exited since. Entries
+	 * a live runtime has yet to dispatch are left to it. The entries stay in the journal until they are
+	 * acknowledged, once the replay event has been dispatched. Waits for open() to finish reading the file.
+	 * @param luaState The lua state the entries will be replayed to.
+	 * @return Returns the entries as tasks, oldest first, or null if there are none.
+	 */
+	public static ArrayList<PayPalEventTask> takeReplay( LuaState luaState )
+	{
+		// Wait for the file to be read, if the journal has been opened
+		CountDownLatch opened = sOpened.get();
+		if ( opened != null )
+		{
+			boolean interrupted = false;
+			while ( opened.getCount() > 0 )
+			{
+				try
+				{
+					opened.await();
+				}
+				catch ( InterruptedException ex )
+				{
+					interrupted = true;
+				}
+			}
+			if ( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		ArrayList<PayPalEventTask> tasks = null;
+		synchronized ( sLock )
+		{
+			for ( Pending pending : sPending.values() )
+			{
+				// Sent to a runtime that is still live, it will dispatch or acknowledge the entry itself
+				if ( pending.fLuaState != null && ( pending.fLuaState == luaState || PluginContext.find( pending.fLuaState ) != null ) )
+				{
+					continue;
+				}
+				pending.fLuaState = luaState;
+
+				try
+				{
+					PayPalEventTask task = decode( new JSONObject( new String( pending.fPayload, "UTF-8" ) ) );
+					task.setJournalId( pending.fId );
+					if ( tasks == null )
+					{
+						tasks = new ArrayList<PayPalEventTask>();
+					}
+					tasks.add( task );
+				}
+				catch ( Exception ex )
+				{
+					PluginLog.error( "payPal journal, could not decode entry {}: {}", pending.fId, ex );
+				}
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Gets the number of entries that have not been acknowledged.
+	 * <p>
+	 * Never waits for the journal writer, which holds the lock across disk writes.
+	 * @return Returns the number of pending entries.
+	 */
+	public static int getPendingCount()
+	{
+		return sPendingCount.get();
+	}
+
+	// Encodes the fields of a task that make up its event
+	private static JSONObject encode( PayPalEventTask task ) throws JSONException
+	{
+		JSONObject json = new JSONObject();
+		json.put( "kind", task.fKind );
+		json.put( "state", task.fState );
+		json.put( "requestID", task.fRequestID );
+		json.put( "responseAsTable", task.fResponseAsTable );
+		if ( task.fCorrelationID != null ) json.put( "correlationID", task.fCorrelationID );
+		if ( task.fResponse != null ) json.put( "response", task.fResponse );
+		if ( task.fCurrencyCode != null ) json.put( "currencyCode", task.fCurrencyCode );
+		if ( task.fAmount != null ) json.put( "amount", task.fAmount );
+		if ( task.fShortDescription != null ) json.put( "shortDescription", task.fShortDescription );
+		return json;
+	}
+
+	// Decodes a task encoded by encode(), without a listener
+	private static PayPalEventTask decode( JSONObject json )
+	{
+		return PayPalEventTask.obtain( json.optInt( "kind" ), json.optInt( "state" ), com.ansca.corona.CoronaLua.REFNIL, 0 )
+			.setRequestID( json.optInt( "requestID" ) )
+			.setResponse( json.optString( "correlationID", null ), json.optJSONObject( "response" ), json.optBoolean( "responseAsTable" ) )
+			.setPaymentDetails( json.optString( "currencyCode", null ), json.optString( "amount", null ), json.optString( "shortDescription", null ) );
+	}
+
+	// Reads the journal file into the pending entries, called with sLock held
+	private static void read( File journal ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( journal, "r" );
+		try
+		{
+			long length = file.length();
+			if ( length < 4 || file.readInt() != MAGIC )
+			{
+				PluginLog.warn( "payPal journal, ignoring {}, it is not a journal", journal );
+				return;
+			}
+
+			CRC32 crc = new CRC32();
+			long position = 4;
+			while ( position + RECORD_OVERHEAD <= length )
+			{
+				// Record header
+				file.seek( position );
+				int type = file.readInt();
+				int id = file.readInt();
+				int size = file.readInt();
+				if ( ( type != RECORD_ENTRY && type != RECORD_ACK ) || size < 0 || size > MAX_PAYLOAD || position + RECORD_OVERHEAD + size > length )
+				{
+					break;
+				}
+
+				// Payload and checksum
+				byte[] payload = new byte[size];
+				file.readFully( payload );
+				int checksum = file.readInt();
+				if ( checksum != checksum( crc, type, id, payload ) )
+				{
+					break;
+				}
+
+				if ( type == RECORD_ENTRY )
+				{
+					sPending.put( id, new Pending( id, payload, null ) );
+				}
+				else
+				{
+					sPending.remove( id );
+				}
+				if ( id >= sNextId )
+				{
+					sNextId = id + 1;
+				}
+				position += RECORD_OVERHEAD + size;
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	// Appends a record, compacting or growing the file when it is full, called with sLock held by the journal writer
+	private static boolean append( int type, int id, byte[] payload )
+	{
+		int size = RECORD_OVERHEAD + payload.length;
+
+		// Make room by dropping acknowledged entries
+		if ( ( sBuffer == null || sBuffer.remaining() < size ) && compact( size ) == false )
+		{
+			return false;
+		}
+
+		write( sBuffer, type, id, payload );
+		sBuffer.force();
+		return true;
+	}
+
+	// Rewrites the journal with just the pending entries and maps it, leaving at least the given free space.
+	// Called with sLock held by the journal writer
+	private static boolean compact( int free )
+	{
+		if ( sFile == null )
+		{
+			return false;
+		}
+
+		// Size the file for twice what it has to hold, so it doesn't fill straight away
+		int used = 4 + free;
+		for ( Pending pending : sPending.values() )
+		{
+			used += RECORD_OVERHEAD + pending.fPayload.length;
+		}
+		int capacity = INITIAL_CAPACITY;
+		while ( capacity < used * 2 )
+		{
+			capacity *= 2;
+		}
+
+		File temp = new File( sFile.getPath() + ".tmp" );
+		try
+		{
+			// Write the pending entries to a new file
+			MappedByteBuffer buffer = map( temp, capacity );
+			buffer.putInt( MAGIC );
+			for ( Pending pending : sPending.values() )
+			{
+				write( buffer, RECORD_ENTRY, pending.fId, pending.fPayload );
+			}
+			buffer.force();
+
+			// Swap it in, a crash before the rename leaves the old file in place
+			if ( temp.renameTo( sFile ) == false )
+			{
+				throw new IOException( "could not replace " + sFile );
+			}
+
+			// Drop the old mapping. Android has no way to unmap a buffer, so its pages are released once it has
+			// been collected. That is at most one stale mapping per compaction, and compactions are rare: one when
+			// the journal is opened, then one each time the file, sized at twice its contents, fills up
+			sBuffer = buffer;
+			return true;
+		}
+		catch ( IOException ex )
+		{
+			PluginLog.error( "payPal journal, could not be compacted", ex );
+			temp.delete();
+			return false;
+		}
+	}
+
+	// Maps a file of the given size, zero filled past its end
+	private static MappedByteBuffer map( File file, int capacity ) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try
+		{
+			raf.setLength( 0 );
+			raf.setLength( capacity );
+			FileChannel channel = raf.getChannel();
+			return channel.map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+		}
+		finally
+		{
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	// Writes a record at the buffer's position
+	private static void write( MappedByteBuffer buffer, int type, int id, byte[] payload )
+	{
+		buffer.putInt( type );
+		buffer.putInt( id );
+		buffer.putInt( payload.length );
+		buffer.put( payload );
+		buffer.putInt( checksum( new CRC32(), type, id, payload ) );
+	}
+
+	// Checksum of a record's header and payload
+	private static int checksum( CRC32 crc, int type, int id, byte[] payload )
+	{
+		crc.reset();
+		updateInt( crc, type );
+		updateInt( crc, id );
+		updateInt( crc, payload.length );
+		crc.update( payload, 0, payload.length );
+		return (int)crc.getValue();
+	}
+
+	// Adds an int to a checksum, big endian like the buffer
+	private static void updateInt( CRC32 crc, int value )
+	{
+		crc.update( value >>> 24 );
+		crc.update( value >>> 16 );
+		crc.update( value >>> 8 );
+		crc.update( value );
+	}
+}
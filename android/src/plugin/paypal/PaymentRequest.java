@@ -0,0 +1,399 @@
+//
+//  PaymentRequest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc Imports
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Android Imports
+import android.app.Activity;
+import android.content.Intent;
+
+// Paypal Imports
+import com.paypal.android.sdk.payments.PayPalAuthorization;
+import com.paypal.android.sdk.payments.PayPalConfiguration;
+import com.paypal.android.sdk.payments.PayPalFuturePaymentActivity;
+import com.paypal.android.sdk.payments.PaymentActivity;
+import com.paypal.android.sdk.payments.PaymentConfirmation;
+
+/**
+ * A payment or future payment started by show(), waiting for its activity result.
+ * <p>
+ * Every request gets its own ID, so several requests can be in flight at once and each result is dispatched
+ * to the listener of the show() call that started it. The {@link ActivityResultRouter} starts each PayPal
+ * activity with a request code of its own and hands its result back by request ID, which is looked up in the
+ * map of requests in flight.
+ */
+public class PaymentRequest implements LuaRefManager.Owner
+{
+	// Source of request IDs
+	private static final AtomicInteger sNextId = new AtomicInteger();
+	// Requests waiting for their activity result, by request ID
+	private static final ConcurrentHashMap<Integer, PaymentRequest> sInFlight = new ConcurrentHashMap<Integer, PaymentRequest>();
+
+	// The request ID returned to Lua
+	private final int fId;
+	// PayPalEventTask.KIND_PAYMENT or PayPalEventTask.KIND_FUTURE_PAYMENT
+	private final int fKind;
+	// The context of the runtime show() was called from
+	private final PluginContext fContext;
+	// The lua callback listener, and the generation of its reference
+	private final int fListenerRef;
+	private final int fListenerGeneration;
+	// Whether the listener wants the response as a Lua table
+	private final boolean fResponseAsTable;
+	// When the PayPal activity was started
+	private long fStartNanos;
+	// The intent of a request waiting for the plugin to be ready
+	private Intent fIntent;
+
+	/**
+	 * Creates a request with a new ID.
+	 * @param kind PayPalEventTask.KIND_PAYMENT or PayPalEventTask.KIND_FUTURE_PAYMENT.
+	 * @param luaState The lua state show() was called from.
+	 * @param listenerRef The registry id of the Lua listener.
+	 * @param responseAsTable Whether the listener wants the response as a Lua table.
+	 */
+	public PaymentRequest( int kind, LuaState luaState, int listenerRef, boolean responseAsTable )
+	{
+		fId = sNextId.incrementAndGet();
+		fKind = kind;
+		fContext = PluginContext.get( luaState );
+		fListenerRef = listenerRef;
+		fListenerGeneration = LuaRefManager.getGeneration( luaState, listenerRef );
+		fResponseAsTable = responseAsTable;
+
+		// Stop waiting for the result if the listener times out
+		LuaRefManager.setOwner( luaState, listenerRef, this );
+	}
+
+	/**
+	 * Gets the request ID.
+	 * @return Returns the ID returned to Lua by show().
+	 */
+	public int getId()
+	{
+		return fId;
+	}
+
+	/**
+	 * Gets a request that is waiting for its activity result.
+	 * @param id The request ID.
+	 * @return Returns the request, or null if it is not in flight.
+	 */
+	public static PaymentRequest get( int id )
+	{
+		return sInFlight.get( id );
+	}
+
+	/**
+	 * Gets the number of requests waiting for their activity result.
+	 * @return Returns the number of requests in flight.
+	 */
+	public static int getInFlightCount()
+	{
+		return sInFlight.size();
+	}
+
+	/**
+	 * Registers this request and starts the PayPal activity for it.
+	 * @param activity The Corona activity.
+	 * @param intent The intent of the PayPal activity to start.
+	 * @return Returns false if too many requests are already in flight.
+	 */
+	public boolean start( CoronaActivity activity, Intent intent )
+	{
+		// Count the window
+		if ( fKind == PayPalEventTask.KIND_PAYMENT ) Metrics.paymentsShown.increment();
+		else Metrics.futurePaymentsShown.increment();
+
+		// Register before starting, so the result can't arrive first
+		fStartNanos = System.nanoTime();
+		sInFlight.put( fId, this );
+		if ( ActivityResultRouter.forActivity( activity ).start( fId, intent ) == false )
+		{
+			sInFlight.remove( fId );
+			return false;
+		}
+		Tracer.end( fId, Tracer.SPAN_START_ACTIVITY, fStartNanos );
+
+		// Record the time to the first payment sheet
+		if ( paypal.firstPaymentSheetNanos.get() == 0 && paypal.initNanos != 0 )
+		{
+			paypal.firstPaymentSheetNanos.compareAndSet( 0, System.nanoTime() - paypal.initNanos );
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the PayPal activity for this request now if the plugin is ready, otherwise once config() has finished.
+	 * @param activity The Corona activity.
+	 * @param intent The intent of the PayPal activity to start.
+	 * @return Returns false if too many requests are already in flight or waiting.
+	 */
+	public boolean startWhenReady( CoronaActivity activity, Intent intent )
+	{
+		if ( fContext.getState() == PluginContext.STATE_READY )
+		{
+			return start( activity, intent );
+		}
+
+		// Wait, unless too many requests already are
+		fIntent = intent;
+		if ( fContext.getWaiting().offer( this ) == false )
+		{
+			return false;
+		}
+
+		// The plugin may have become ready while this request was being queued, and missed it
+		if ( fContext.getState() == PluginContext.STATE_READY )
+		{
+			startWaiting( fContext, activity );
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the requests that were waiting for a runtime's plugin to be ready, oldest first.
+	 * @param context The context of the runtime.
+	 * @param activity The Corona activity.
+	 */
+	public static void startWaiting( PluginContext context, CoronaActivity activity )
+	{
+		PaymentRequest request;
+		while ( ( request = context.getWaiting().poll() ) != null )
+		{
+			// Start it, or free its listener if it can't be
+			Intent intent = request.fIntent;
+			request.fIntent = null;
+			if ( activity == null || request.start( activity, intent ) == false )
+			{
+				PluginLog.error( "payPal.show(), could not start a request made before payPal.config() had finished" );
+				request.sendWithoutResult( PayPalEventTask.KIND_RELEASE );
+			}
+		}
+	}
+
+	/**
+	 * Sends the event for a request that could not be started, such as a payment that is not processable.
+	 * @param kind The kind of event.
+	 */
+	public void sendWithoutResult( int kind )
+	{
+		// Create the task
+		PayPalEventTask task = PayPalEventTask.obtain( kind, PayPalEventTask.STATE_NONE, fListenerRef, fListenerGeneration ).setRequestID( fId );
+
+		// Send the task to the Corona runtime asynchronously.
+		fContext.getDispatcher().send( task );
+	}
+
+	/**
+	 * Drops every request in flight that was made from a runtime, for when the runtime is exiting.
+	 * @param context The context of the runtime.
+	 */
+	public static void cancelAll( PluginContext context )
+	{
+		Iterator<PaymentRequest> it = sInFlight.values().iterator();
+		while ( it.hasNext() )
+		{
+			if ( it.next().fContext == context )
+			{
+				it.remove();
+			}
+		}
+	}
+
+	// Called on the Lua thread when the listener has waited too long for a result
+	@Override
+	public void onRefExpired( int ref )
+	{
+		// Never start it if it is still waiting for config(), and drop its result if it has been started.
+		// The router keeps the request code it was started with until the PayPal activity returns
+		fContext.getWaiting().remove( this );
+		sInFlight.remove( fId );
+	}
+
+	/**
+	 * Called on the UI thread with the result of the PayPal activity started for a request.
+	 * @param id The request ID.
+	 * @param activity The Corona activity.
+	 * @param resultCode The result code of the PayPal activity.
+	 * @param data The result data of the PayPal activity.
+	 */
+	static void onResult( int id, CoronaActivity activity, int resultCode, Intent data )
+	{
+		// Take the request out of flight, unless it has already been cancelled or timed out
+		PaymentRequest request = sInFlight.remove( id );
+		if ( request != null )
+		{
+			request.onResult( activity, resultCode, data );
+		}
+	}
+
+	// Called on the UI thread with the activity result of this request
+	private void onResult( final CoronaActivity activity, final int resultCode, final Intent data )
+	{
+		// When the result arrived
+		final long resultNanos = System.nanoTime();
+
+		// Trace the time the window was open
+		Tracer.record( fId, Tracer.SPAN_ACTIVITY, fStartNanos, resultNanos );
+
+		// Read the result off the UI thread, so it isn't held up while the PayPal window closes
+		PluginWorkers.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				deliver( activity, resultCode, data, resultNanos );
+			}
+		});
+
+		// Record how long the UI thread spent on the result
+		Metrics.resultHandlerDuration.recordSince( resultNanos );
+	}
+
+	// Called on a worker thread to turn the activity result into an event and send it
+	private void deliver( CoronaActivity activity, int resultCode, Intent data, long resultNanos )
+	{
+		// The task to send, if any
+		PayPalEventTask task = null;
+		long extractNanos = Tracer.start();
+
+		// The result was successful
+		if ( resultCode == Activity.RESULT_OK )
+		{
+			// The PayPal correlation id
+			final String correlationID = PayPalConfiguration.getApplicationCorrelationId( activity );
+
+			// Payment request
+			if ( fKind == PayPalEventTask.KIND_PAYMENT )
+			{
+				// Get the confirmation data
+				final PaymentConfirmation confirmation = data.getParcelableExtra( PaymentActivity.EXTRA_RESULT_CONFIRMATION );
+
+				// If we have confirmation data
+				if ( confirmation != null )
+				{
+					// Payment details
+					String currencyCode = null;
+					String amount = null;
+					String shortDescription = null;
+
+					// Get the payment details
+					try
+					{
+						// Get the confirmation details
+						JSONObject confirmationDetails = confirmation.getPayment().toJSONObject();
+						currencyCode = confirmationDetails.getString( "currency_code" );
+						amount = confirmationDetails.getString( "amount" );
+						shortDescription = confirmationDetails.getString( "short_description" );
+					}
+					catch( JSONException e )
+					{
+						PluginLog.error( "payPal.show( 'payment' ), could not read the payment details", e );
+					}
+
+					// Create the task
+					task = PayPalEventTask.obtain( fKind, PayPalEventTask.STATE_COMPLETED, fListenerRef, fListenerGeneration )
+						.setResponse( correlationID, confirmation.toJSONObject(), fResponseAsTable )
+						.setPaymentDetails( currencyCode, amount, shortDescription );
+				}
+			}
+			// Future payment request
+			else
+			{
+				// Get the authorization data
+				final PayPalAuthorization authorization = data.getParcelableExtra( PayPalFuturePaymentActivity.EXTRA_RESULT_AUTHORIZATION );
+
+				// If we have auth data
+				if ( authorization != null )
+				{
+					// Exchange the authorization code for tokens in the background
+					TokenExchange.start( correlationID, authorization.getAuthorizationCode() );
+
+					// Create the task
+					task = PayPalEventTask.obtain( fKind, PayPalEventTask.STATE_COMPLETED, fListenerRef, fListenerGeneration )
+						.setResponse( correlationID, authorization.toJSONObject(), fResponseAsTable );
+				}
+			}
+		}
+		// The user cancelled
+		else if ( resultCode == Activity.RESULT_CANCELED )
+		{
+			// Create the task
+			task = PayPalEventTask.obtain( fKind, PayPalEventTask.STATE_CANCELED, fListenerRef, fListenerGeneration );
+		}
+
+		// Trace the time taken to pull the JSON out of the result
+		Tracer.end( fId, Tracer.SPAN_EXTRACT_JSON, extractNanos );
+
+		// Record how long the window was open and how it ended
+		Metrics.paymentSheetDuration.record( resultNanos - fStartNanos );
+		if ( task == null ) Metrics.failed.increment();
+		else if ( task.fState == PayPalEventTask.STATE_COMPLETED ) Metrics.completed.increment();
+		else Metrics.canceled.increment();
+
+		// No event for this result, but the listener still has to be freed
+		if ( task == null )
+		{
+			task = PayPalEventTask.obtain( PayPalEventTask.KIND_RELEASE, PayPalEventTask.STATE_NONE, fListenerRef, fListenerGeneration );
+		}
+
+		// Corona runtime task dispatcher
+		task.setRequestID( fId ).setResultTime( resultNanos );
+		CoronaRuntimeTaskDispatcher dispatcher = fContext.getDispatcher();
+
+		// Confirmations are journaled first, so they survive the runtime going away before they are dispatched
+		if ( task.fState == PayPalEventTask.STATE_COMPLETED )
+		{
+			PaymentJournal.appendThenSend( task, fContext.getLuaState(), dispatcher );
+		}
+		// Send the task to the Corona runtime asynchronously.
+		else
+		{
+			dispatcher.send( task );
+		}
+	}
+}
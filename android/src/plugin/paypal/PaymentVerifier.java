@@ -0,0 +1,291 @@
+//
+//  PaymentVerifier.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Corona Imports
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc Imports
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Verifies payment confirmations with the app's server before their events reach Lua.
+ * <p>
+ * Confirmations waiting for verification are queued and sent in batches from the plugin workers, as one POST of
+ * <code>{ "confirmations": [ { "requestID", "type", "correlationID", "response" }, ... ] }</code>.
+ * The server answers with <code>{ "results": [ { "verified": true|false, ... }, ... ] }</code> in the same order,
+ * and each result is added to its event as <code>event.verification</code>. Requests that fail on the network or
+ * with a server error are retried with exponential backoff, the I/O thread is free while a retry waits. A server
+ * that answers with anything other than JSON is not asked again. Connections are reused through {@link JsonHttp}.
+ */
+public class PaymentVerifier implements Runnable
+{
+	// Most confirmations sent in one request
+	private static final int MAX_BATCH = 16;
+	// Delay before the first retry, doubled for each one after
+	private static final long BACKOFF_MILLIS = 500;
+
+	// The verifier set by config(), null if verification is off
+	private static volatile PaymentVerifier sVerifier = null;
+
+	// A confirmation waiting for verification
+	private static final class Pending
+	{
+		final PayPalEventTask fTask;
+		final CoronaRuntimeTaskDispatcher fDispatcher;
+
+		Pending( PayPalEventTask task, CoronaRuntimeTaskDispatcher dispatcher )
+		{
+			fTask = task;
+			fDispatcher = dispatcher;
+		}
+	}
+
+	// Thrown for a request that should not be retried
+	private static final class RejectedException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		RejectedException( String message )
+		{
+			super( message );
+		}
+	}
+
+	// The verification endpoint
+	private final URL fURL;
+	// Number of times a request is tried
+	private final int fAttempts;
+	// Request timeout in milliseconds
+	private final int fTimeout;
+	// Confirmations waiting for verification
+	private final LinkedBlockingQueue<Pending> fQueue = new LinkedBlockingQueue<Pending>();
+
+	// Verifiers are created by configure()
+	private PaymentVerifier( URL url, int attempts, int timeout )
+	{
+		fURL = url;
+		fAttempts = Math.max( 1, attempts );
+		fTimeout = Math.max( 0, timeout );
+	}
+
+	/**
+	 * Turns verification on or off for confirmations that arrive from now on.
+	 * @param url The verification endpoint, null to turn verification off.
+	 * @param attempts The number of times a request is tried.
+	 * @param timeout The request timeout in milliseconds.
+	 */
+	public static void configure( String url, int attempts, int timeout )
+	{
+		// Keep the current verifier and its queue if nothing changed
+		PaymentVerifier current = sVerifier;
+		if ( url == null )
+		{
+			sVerifier = null;
+			return;
+		}
+		if ( current != null && current.fURL.toString().equals( url ) && current.fAttempts == Math.max( 1, attempts ) && current.fTimeout == Math.max( 0, timeout ) )
+		{
+			return;
+		}
+
+		try
+		{
+			sVerifier = new PaymentVerifier( new URL( url ), attempts, timeout );
+		}
+		catch ( MalformedURLException ex )
+		{
+			PluginLog.error( "payPal.config(), verification.url is not a valid URL: {}", url );
+			sVerifier = null;
+		}
+	}
+
+	/**
+	 * Sends a task to Lua, verifying it with the server first if verification is on.
+	 * @param task The completed payment or future payment task.
+	 * @param dispatcher The dispatcher to send the task with.
+	 */
+	public static void send( PayPalEventTask task, CoronaRuntimeTaskDispatcher dispatcher )
+	{
+		PaymentVerifier verifier = sVerifier;
+		if ( verifier == null )
+		{
+			// Send the task to the Corona runtime asynchronously.
+			dispatcher.send( task );
+			return;
+		}
+
+		// Queue the confirmation, whichever I/O thread runs first takes everything queued by then
+		verifier.fQueue.add( new Pending( task, dispatcher ) );
+		PluginWorkers.executeIO( verifier );
+	}
+
+	@Override
+	public void run()
+	{
+		// Take a batch, it may already have been taken by an earlier run
+		ArrayList<Pending> batch = new ArrayList<Pending>();
+		fQueue.drainTo( batch, MAX_BATCH );
+		if ( batch.isEmpty() )
+		{
+			return;
+		}
+		new Batch( batch ).run();
+	}
+
+	// A batch of confirmations, posted once per attempt
+	private final class Batch implements Runnable
+	{
+		// The confirmations
+		private final ArrayList<Pending> fPending;
+		// Number of attempts made so far
+		private int fAttempt = 0;
+
+		Batch( ArrayList<Pending> pending )
+		{
+			fPending = pending;
+		}
+
+		@Override
+		public void run()
+		{
+			JSONArray results = null;
+			String error = null;
+			try
+			{
+				results = post( fPending );
+			}
+			catch ( RejectedException ex )
+			{
+				error = ex.getMessage();
+			}
+			catch ( IOException ex )
+			{
+				// Try again after the backoff, without holding an I/O thread while waiting
+				fAttempt++;
+				if ( fAttempt < fAttempts )
+				{
+					PluginWorkers.executeIOAfter( this, BACKOFF_MILLIS << ( fAttempt - 1 ) );
+					return;
+				}
+				error = ex.toString();
+			}
+
+			// Hand each event its verdict and send it
+			for ( int i = 0; i < fPending.size(); i++ )
+			{
+				Pending pending = fPending.get( i );
+				JSONObject verdict = results != null ? results.optJSONObject( i ) : null;
+				if ( verdict == null )
+				{
+					verdict = failure( error != null ? error : "no result for this confirmation" );
+				}
+				pending.fTask.setVerification( verdict );
+
+				// Send the task to the Corona runtime asynchronously.
+				pending.fDispatcher.send( pending.fTask );
+			}
+		}
+	}
+
+	// Posts a batch and returns the server's results, one per confirmation
+	private JSONArray post( ArrayList<Pending> batch ) throws IOException
+	{
+		// Post it, a server error may go away if tried again
+		JSONObject response;
+		try
+		{
+			response = JsonHttp.post( fURL, body( batch ), fTimeout );
+		}
+		catch ( JsonHttp.StatusException ex )
+		{
+			if ( ex.isRetryable() )
+			{
+				throw ex;
+			}
+			throw new RejectedException( "verification " + ex.getMessage() );
+		}
+		catch ( JSONException ex )
+		{
+			// Most likely an HTML error page from a proxy, asking again gets the same page
+			throw new RejectedException( "verification server did not answer with JSON" );
+		}
+
+		JSONArray results = response.optJSONArray( "results" );
+		if ( results == null || results.length() != batch.size() )
+		{
+			throw new RejectedException( "verification server returned " + ( results == null ? "no" : "the wrong number of" ) + " results" );
+		}
+		return results;
+	}
+
+	// The request body of a batch
+	private static JSONObject body( ArrayList<Pending> batch ) throws JSONException
+	{
+		JSONArray confirmations = new JSONArray();
+		for ( int i = 0; i < batch.size(); i++ )
+		{
+			PayPalEventTask task = batch.get( i ).fTask;
+			JSONObject confirmation = new JSONObject();
+			confirmation.put( "requestID", task.fRequestID );
+			confirmation.put( "type", task.fKind == PayPalEventTask.KIND_PAYMENT ? "payment" : "futurePayment" );
+			confirmation.put( "correlationID", task.fCorrelationID );
+			confirmation.put( "response", task.fResponse );
+			confirmations.put( confirmation );
+		}
+		return new JSONObject().put( "confirmations", confirmations );
+	}
+
+	// The verdict of a confirmation that could not be verified
+	private static JSONObject failure( String error )
+	{
+		JSONObject verdict = new JSONObject();
+		try
+		{
+			verdict.put( "verified", false );
+			verdict.put( "error", error );
+		}
+		catch ( JSONException ex )
+		{
+			PluginLog.error( "payPal verification, could not build a failed verdict", ex );
+		}
+		return verdict;
+	}
+}
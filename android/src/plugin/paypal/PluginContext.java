@@ -0,0 +1,285 @@
+//
+//  PluginContext.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaLua;
+
+/**
+ * The plugin's state for one Corona runtime, created when the runtime requires the plugin and torn down when it exits.
+ * <p>
+ * LuaLoader lives for the whole process, so anything that belongs to a runtime lives here instead, and a second
+ * Corona activity starts from a clean context rather than the last one's leftovers.
+ * <p>
+ * Some state is still shared by every runtime in the process. The verifier ({@link PaymentVerifier}) and the token
+ * exchange ({@link TokenExchange}) are set by whichever runtime called config() last. Carts ({@link Cart}) are
+ * registered process-wide. The payment journal ({@link PaymentJournal}) is one file for the whole app.
+ */
+public class PluginContext
+{
+	// Plugin states, in the order they are reached
+	public static final int STATE_UNINITIALIZED = 0;
+	public static final int STATE_INITIALIZING = 1;
+	public static final int STATE_CONFIGURED = 2;
+	public static final int STATE_READY = 3;
+	// The names of the states, as returned to Lua by getState()
+	private static final String[] STATE_NAMES = { "uninitialized", "initializing", "configured", "ready" };
+
+	// Most requests that can wait for config() to finish
+	private static final int MAX_WAITING = 8;
+
+	// The context of every live runtime, by Lua state
+	private static final ConcurrentHashMap<LuaState, PluginContext> sContexts = new ConcurrentHashMap<LuaState, PluginContext>();
+	// The context looked up last, nearly always the one asked for next
+	private static volatile PluginContext sLast = null;
+
+	// The runtime's Lua state
+	private final LuaState fLuaState;
+	// The Corona runtime task dispatcher, shared by every event sent to this runtime
+	private final EventDispatcher fDispatcher;
+	// The current state, moved forward by init() and config()
+	private final AtomicInteger fState = new AtomicInteger( STATE_UNINITIALIZED );
+	// Requests made before the plugin was ready, oldest first
+	private final ArrayBlockingQueue<PaymentRequest> fWaiting = new ArrayBlockingQueue<PaymentRequest>( MAX_WAITING );
+	// The Corona activity of the runtime, set by init()
+	private volatile CoronaActivity fActivity = null;
+	// Whether the context has been torn down
+	private volatile boolean fDestroyed = false;
+
+	// The options the PayPal service was last started with, only used on the Lua thread
+	ConfigOptions appliedOptions = null;
+	// Registry reference of the options packer function, only used on the Lua thread
+	int packerRef = CoronaLua.REFNIL;
+	// The Lua references the plugin holds in this runtime, by reference, see LuaRefManager
+	final ConcurrentHashMap<Integer, LuaRefManager.Entry> refs = new ConcurrentHashMap<Integer, LuaRefManager.Entry>();
+	// The listener log messages are forwarded to and the generation of its reference, see PluginLog
+	volatile int logSinkRef = CoronaLua.REFNIL;
+	volatile int logSinkGeneration = 0;
+
+	// Contexts are created by get()
+	private PluginContext( LuaState luaState )
+	{
+		fLuaState = luaState;
+		fDispatcher = new EventDispatcher( luaState );
+	}
+
+	/**
+	 * Gets the context of the runtime owning a Lua state, creating it the first time.
+	 * <p>
+	 * Lock free: a repeat lookup is one volatile read, any other is one map read.
+	 * @param luaState The runtime's Lua state.
+	 * @return Returns the context.
+	 */
+	public static PluginContext get( LuaState luaState )
+	{
+		// The same runtime as last time
+		PluginContext context = sLast;
+		if ( context != null && context.fLuaState == luaState )
+		{
+			return context;
+		}
+
+		// Look it up, creating it if this is a new runtime
+		context = sContexts.get( luaState );
+		if ( context == null )
+		{
+			PluginContext created = new PluginContext( luaState );
+			context = sContexts.putIfAbsent( luaState, created );
+			if ( context == null )
+			{
+				context = created;
+			}
+		}
+		sLast = context;
+		return context;
+	}
+
+	/**
+	 * Gets the context of the runtime owning a Lua state, without creating it.
+	 * @param luaState The runtime's Lua state.
+	 * @return Returns the context, or null if the runtime has none or has exited.
+	 */
+	public static PluginContext find( LuaState luaState )
+	{
+		PluginContext context = sLast;
+		if ( context != null && context.fLuaState == luaState )
+		{
+			return context;
+		}
+		return sContexts.get( luaState );
+	}
+
+	/**
+	 * Gets the contexts of every live runtime.
+	 * @return Returns a live view of the contexts.
+	 */
+	static Collection<PluginContext> getAll()
+	{
+		return sContexts.values();
+	}
+
+	/**
+	 * Tears down the context of a runtime that is exiting, if it has one.
+	 * <p>
+	 * Drops its waiting and in flight requests, stops forwarding log messages to it, unregisters its result router
+	 * and releases the Lua references it still holds.
+	 * @param luaState The runtime's Lua state.
+	 */
+	public static void destroy( LuaState luaState )
+	{
+		PluginContext context = sContexts.remove( luaState );
+		if ( sLast != null && sLast.fLuaState == luaState )
+		{
+			sLast = null;
+		}
+		if ( context == null )
+		{
+			return;
+		}
+
+		// Stop anything still headed for this runtime
+		context.fDestroyed = true;
+		context.fState.set( STATE_UNINITIALIZED );
+		context.fWaiting.clear();
+		context.logSinkRef = CoronaLua.REFNIL;
+		PaymentRequest.cancelAll( context );
+		CoronaActivity activity = context.fActivity;
+		if ( activity != null )
+		{
+			ActivityResultRouter.unregister( activity );
+		}
+		LuaRefManager.releaseAll( context );
+	}
+
+	/**
+	 * Gets the runtime's Lua state.
+	 * @return Returns the Lua state.
+	 */
+	public LuaState getLuaState()
+	{
+		return fLuaState;
+	}
+
+	/**
+	 * Gets the task dispatcher of the runtime.
+	 * @return Returns the dispatcher.
+	 */
+	public EventDispatcher getDispatcher()
+	{
+		return fDispatcher;
+	}
+
+	/**
+	 * Checks whether the runtime has exited.
+	 * @return Returns true if the context has been torn down.
+	 */
+	public boolean isDestroyed()
+	{
+		return fDestroyed;
+	}
+
+	/**
+	 * Gets the Corona activity of the runtime.
+	 * @return Returns the activity, or null if init() has not been called.
+	 */
+	public CoronaActivity getActivity()
+	{
+		return fActivity;
+	}
+
+	/**
+	 * Sets the Corona activity of the runtime.
+	 * @param activity The activity.
+	 */
+	public void setActivity( CoronaActivity activity )
+	{
+		fActivity = activity;
+	}
+
+	/**
+	 * Gets the plugin state.
+	 * @return Returns one of the STATE_ constants.
+	 */
+	public int getState()
+	{
+		return fState.get();
+	}
+
+	/**
+	 * Gets the name of the plugin state.
+	 * @return Returns "uninitialized", "initializing", "configured" or "ready".
+	 */
+	public String getStateName()
+	{
+		return STATE_NAMES[fState.get()];
+	}
+
+	/**
+	 * Moves the plugin state forward, leaving it alone if it is already at or past the given state.
+	 * @param state One of the STATE_ constants.
+	 * @return Returns true if the state was moved.
+	 */
+	public boolean advanceState( int state )
+	{
+		while ( fDestroyed == false )
+		{
+			int current = fState.get();
+			if ( current >= state )
+			{
+				return false;
+			}
+			if ( fState.compareAndSet( current, state ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the requests waiting for the plugin to be ready.
+	 * @return Returns the queue, oldest first.
+	 */
+	ArrayBlockingQueue<PaymentRequest> getWaiting()
+	{
+		return fWaiting;
+	}
+}
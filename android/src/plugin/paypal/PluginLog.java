@@ -0,0 +1,388 @@
+//
+//  PluginLog.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+
+/**
+ * The plugin's logger.
+ * <p>
+ * Callers pass a message format with <code>{}</code> placeholders and its arguments, which are stored in a
+ * preallocated ring buffer without locking. A background thread formats them and prints them to the console, and
+ * hands them in batches to a Lua listener if one was set with init(). Messages below {@link #COMPILED_LEVEL} are
+ * removed by the compiler, and messages below the level set with init() cost one volatile read.
+ * <p>
+ * Arguments are still evaluated at the call site, so a debug message whose arguments take work to build is
+ * wrapped in <code>if ( PluginLog.DEBUG_COMPILED )</code>, which the compiler removes with it.
+ */
+public class PluginLog
+{
+	// Levels
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int NONE = 4;
+
+	// Lua names of the levels
+	private static final String[] LEVEL_NAMES = { "debug", "info", "warn", "error", "none" };
+	// Console prefixes of the levels
+	private static final String[] LEVEL_PREFIXES = { "Debug: ", "Info: ", "Warning: ", "Error: " };
+
+	/**
+	 * The lowest level compiled in. Calls below it are dead code. Set it to DEBUG for a debugging build.
+	 */
+	public static final int COMPILED_LEVEL = INFO;
+
+	/**
+	 * Whether debug messages are compiled in, for guarding debug messages whose arguments take work to build.
+	 */
+	public static final boolean DEBUG_COMPILED = DEBUG >= COMPILED_LEVEL;
+
+	// Number of messages the ring holds, a power of two
+	private static final int CAPACITY = 256;
+	private static final int MASK = CAPACITY - 1;
+	// How long the drain thread sleeps when there is nothing to do
+	private static final long IDLE_NANOS = 250L * 1000000L;
+
+	// The level set by init()
+	private static volatile int sLevel = WARN;
+
+	// The ring, each slot's fields are published by setting its sequence number last
+	private static final int[] sLevels = new int[CAPACITY];
+	private static final String[] sFormats = new String[CAPACITY];
+	private static final Object[] sArgs0 = new Object[CAPACITY];
+	private static final Object[] sArgs1 = new Object[CAPACITY];
+	private static final Object[] sArgs2 = new Object[CAPACITY];
+	private static final Throwable[] sThrowables = new Throwable[CAPACITY];
+	private static final AtomicLongArray sSlotSequences = new AtomicLongArray( CAPACITY );
+	// Sequence number of the next message to write
+	private static final AtomicLong sNext = new AtomicLong();
+	// Sequence number of the next message to drain
+	private static volatile long sDrained = 0;
+	// Number of messages dropped because the ring was full
+	private static final AtomicLong sDropped = new AtomicLong();
+
+	// The thread that formats and prints the messages
+	private static final Thread sDrainThread = new Thread( "PayPal log" )
+	{
+		@Override
+		public void run()
+		{
+			while ( true )
+			{
+				if ( drain() == false )
+				{
+					LockSupport.parkNanos( IDLE_NANOS );
+				}
+			}
+		}
+	};
+
+	static
+	{
+		sDrainThread.setDaemon( true );
+		sDrainThread.setPriority( Thread.MIN_PRIORITY );
+		sDrainThread.start();
+	}
+
+	/**
+	 * Sets the lowest level that is logged.
+	 * @param name "debug", "info", "warn", "error" or "none".
+	 * @return Returns false if the name is not a level.
+	 */
+	public static boolean setLevel( String name )
+	{
+		for ( int i = 0; i < LEVEL_NAMES.length; i++ )
+		{
+			if ( LEVEL_NAMES[i].equalsIgnoreCase( name ) )
+			{
+				sLevel = i;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the Lua listener a runtime's copy of the messages is forwarded to in batches, replacing its previous one.
+	 * <p>
+	 * Must be called on the Lua thread, the previous listener is released. The listener never times out.
+	 * @param L The lua state.
+	 * @param listenerRef The listener, CoronaLua.REFNIL to stop forwarding.
+	 */
+	public static void setSink( LuaState L, int listenerRef )
+	{
+		PluginContext context = PluginContext.get( L );
+		int previousRef = context.logSinkRef;
+		context.logSinkGeneration = LuaRefManager.getGeneration( L, listenerRef );
+		context.logSinkRef = listenerRef;
+		LuaRefManager.keep( L, listenerRef );
+		LuaRefManager.release( L, previousRef );
+	}
+
+	/**
+	 * Checks if a level is logged, to skip work done only for a message.
+	 * @param level The level.
+	 * @return Returns true if messages of the level are logged.
+	 */
+	public static boolean isLoggable( int level )
+	{
+		return level >= COMPILED_LEVEL && level >= sLevel;
+	}
+
+	/**
+	 * Logs an error.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 */
+	public static void error( String format, Object arg0 )
+	{
+		if ( ERROR >= COMPILED_LEVEL && ERROR >= sLevel ) write( ERROR, format, arg0, null, null, null );
+	}
+
+	/**
+	 * Logs an error.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 * @param arg1 The second argument.
+	 */
+	public static void error( String format, Object arg0, Object arg1 )
+	{
+		if ( ERROR >= COMPILED_LEVEL && ERROR >= sLevel ) write( ERROR, format, arg0, arg1, null, null );
+	}
+
+	/**
+	 * Logs an error without arguments.
+	 * @param message The message.
+	 */
+	public static void error( String message )
+	{
+		if ( ERROR >= COMPILED_LEVEL && ERROR >= sLevel ) write( ERROR, message, null, null, null, null );
+	}
+
+	/**
+	 * Logs an exception.
+	 * @param message What was being done.
+	 * @param ex The exception, printed with its stack trace.
+	 */
+	public static void error( String message, Throwable ex )
+	{
+		if ( ERROR >= COMPILED_LEVEL && ERROR >= sLevel ) write( ERROR, message, null, null, null, ex );
+	}
+
+	/**
+	 * Logs a warning.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 */
+	public static void warn( String format, Object arg0 )
+	{
+		if ( WARN >= COMPILED_LEVEL && WARN >= sLevel ) write( WARN, format, arg0, null, null, null );
+	}
+
+	/**
+	 * Logs a warning.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 * @param arg1 The second argument.
+	 */
+	public static void warn( String format, Object arg0, Object arg1 )
+	{
+		if ( WARN >= COMPILED_LEVEL && WARN >= sLevel ) write( WARN, format, arg0, arg1, null, null );
+	}
+
+	/**
+	 * Logs information.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 */
+	public static void info( String format, Object arg0 )
+	{
+		if ( INFO >= COMPILED_LEVEL && INFO >= sLevel ) write( INFO, format, arg0, null, null, null );
+	}
+
+	/**
+	 * Logs a debug message.
+	 * @param format The message, with a {} for each argument.
+	 * @param arg0 The first argument.
+	 * @param arg1 The second argument.
+	 */
+	public static void debug( String format, Object arg0, Object arg1 )
+	{
+		if ( DEBUG_COMPILED && DEBUG >= sLevel ) write( DEBUG, format, arg0, arg1, null, null );
+	}
+
+	/**
+	 * Gets the number of messages dropped because the drain thread fell behind.
+	 * @return Returns the number of dropped messages.
+	 */
+	public static long getDroppedCount()
+	{
+		return sDropped.get();
+	}
+
+	// Puts a message in the ring
+	private static void write( int level, String format, Object arg0, Object arg1, Object arg2, Throwable ex )
+	{
+		// Claim a slot, unless the ring is full
+		long sequence;
+		do
+		{
+			sequence = sNext.get();
+			if ( sequence - sDrained >= CAPACITY )
+			{
+				sDropped.incrementAndGet();
+				return;
+			}
+		}
+		while ( sNext.compareAndSet( sequence, sequence + 1 ) == false );
+
+		// Fill it in and publish it
+		int slot = (int)( sequence & MASK );
+		sLevels[slot] = level;
+		sFormats[slot] = format;
+		sArgs0[slot] = arg0;
+		sArgs1[slot] = arg1;
+		sArgs2[slot] = arg2;
+		sThrowables[slot] = ex;
+		sSlotSequences.set( slot, sequence + 1 );
+
+		// Wake the drain thread for the first message after it went idle
+		if ( sequence == sDrained )
+		{
+			LockSupport.unpark( sDrainThread );
+		}
+	}
+
+	// Prints the published messages and forwards them to the sink, returns false if there were none
+	private static boolean drain()
+	{
+		StringBuilder builder = new StringBuilder();
+		ArrayList<String> batch = null;
+		ArrayList<String> batchLevels = null;
+
+		boolean drained = false;
+		for ( long sequence = sDrained; sequence < sNext.get(); sequence++ )
+		{
+			// Stop at a slot that hasn't been published yet
+			int slot = (int)( sequence & MASK );
+			if ( sSlotSequences.get( slot ) != sequence + 1 )
+			{
+				break;
+			}
+
+			// Format the message
+			int level = sLevels[slot];
+			builder.setLength( 0 );
+			format( builder, sFormats[slot], sArgs0[slot], sArgs1[slot], sArgs2[slot] );
+			Throwable ex = sThrowables[slot];
+
+			// Free the slot
+			sFormats[slot] = null;
+			sArgs0[slot] = null;
+			sArgs1[slot] = null;
+			sArgs2[slot] = null;
+			sThrowables[slot] = null;
+			sDrained = sequence + 1;
+			drained = true;
+
+			// Print it
+			if ( ex != null )
+			{
+				StringWriter trace = new StringWriter();
+				ex.printStackTrace( new PrintWriter( trace ) );
+				builder.append( '\n' ).append( trace.toString() );
+			}
+			String message = builder.toString();
+			System.out.println( LEVEL_PREFIXES[level] + message );
+
+			// Add it to the batch for Lua
+			if ( batch == null )
+			{
+				batch = new ArrayList<String>();
+				batchLevels = new ArrayList<String>();
+			}
+			batch.add( message );
+			batchLevels.add( LEVEL_NAMES[level] );
+		}
+
+		// Forward the batch in one event to each runtime with a log listener
+		if ( batch != null )
+		{
+			for ( PluginContext context : PluginContext.getAll() )
+			{
+				int sinkRef = context.logSinkRef;
+				int sinkGeneration = context.logSinkGeneration;
+				if ( CoronaLua.REFNIL != sinkRef )
+				{
+					context.getDispatcher().send( PayPalEventTask.obtain( PayPalEventTask.KIND_LOG, PayPalEventTask.STATE_NONE, sinkRef, sinkGeneration )
+						.setLog( batchLevels, batch )
+						.keepListener() );
+				}
+			}
+		}
+		return drained;
+	}
+
+	// Appends a message, replacing each {} with the next argument
+	private static void format( StringBuilder builder, String format, Object arg0, Object arg1, Object arg2 )
+	{
+		if ( format == null )
+		{
+			return;
+		}
+
+		int argument = 0;
+		int start = 0;
+		int index;
+		while ( argument < 3 && ( index = format.indexOf( "{}", start ) ) != -1 )
+		{
+			builder.append( format, start, index );
+			builder.append( argument == 0 ? arg0 : argument == 1 ? arg1 : arg2 );
+			argument++;
+			start = index + 2;
+		}
+		builder.append( format, start, format.length() );
+	}
+}
@@ -0,0 +1,241 @@
+//
+//  PluginWorkers.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The plugin's own worker threads, for everything that doesn't have to run on the UI or Lua thread.
+ * <p>
+ * Reading payment results runs on one small bounded pool. Anything that blocks on the disk or the network,
+ * such as journaling, trace writes and verification, runs on a second pool, so a slow server can never hold
+ * up the next payment result.
+ * <p>
+ * Tasks are often submitted from the UI or Lua thread, so a full queue must never make the caller run the
+ * task itself. Instead the task gets a thread of its own, and the overflow is counted.
+ */
+public class PluginWorkers
+{
+	// Number of threads reading results
+	private static final int WORKER_COUNT = 3;
+	// Number of threads doing blocking I/O
+	private static final int IO_WORKER_COUNT = 2;
+	// Most tasks waiting for a thread, per pool
+	private static final int QUEUE_CAPACITY = 64;
+
+	// Number of tasks that found their pool's queue full
+	private static final AtomicLong sOverflowCount = new AtomicLong();
+
+	// Runs tasks that didn't fit in a pool's queue on a thread of their own
+	private static final RejectedExecutionHandler sOverflowPolicy = new RejectedExecutionHandler()
+	{
+		@Override
+		public void rejectedExecution( Runnable task, ThreadPoolExecutor pool )
+		{
+			sOverflowCount.incrementAndGet();
+			Thread thread = new Thread( task, "PayPal overflow" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+	};
+
+	// The pool reading results
+	private static final ThreadPoolExecutor sPool = newPool( WORKER_COUNT, "PayPal worker" );
+	// The pool doing blocking I/O
+	private static final ThreadPoolExecutor sIoPool = newPool( IO_WORKER_COUNT, "PayPal I/O" );
+	// Hands delayed tasks to the I/O pool when they are due, it never runs them itself
+	private static final ScheduledThreadPoolExecutor sTimer = new ScheduledThreadPoolExecutor( 1, newThreadFactory( "PayPal timer" ) );
+
+	/**
+	 * Runs a task on a worker thread.
+	 * <p>
+	 * The task must not block on the disk or the network, use {@link #executeIO} for that.
+	 * @param task The task to run.
+	 */
+	public static void execute( Runnable task )
+	{
+		sPool.execute( task );
+	}
+
+	/**
+	 * Runs a task that blocks on the disk or the network on an I/O thread.
+	 * @param task The task to run.
+	 */
+	public static void executeIO( Runnable task )
+	{
+		sIoPool.execute( task );
+	}
+
+	/**
+	 * Runs a task that blocks on the disk or the network on an I/O thread, once a delay has passed.
+	 * <p>
+	 * Used for retries, so no I/O thread is held while waiting for the next attempt.
+	 * @param task The task to run.
+	 * @param delayMillis The delay in milliseconds.
+	 */
+	public static void executeIOAfter( final Runnable task, long delayMillis )
+	{
+		sTimer.schedule( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sIoPool.execute( task );
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Creates an executor that runs its tasks one at a time, in order, on the I/O threads.
+	 * <p>
+	 * Used where tasks share state that is only touched by one thread at a time, such as an open file.
+	 * @return Returns the new executor.
+	 */
+	public static Executor newSerialExecutor()
+	{
+		return new SerialExecutor();
+	}
+
+	/**
+	 * Gets the number of tasks waiting for a worker.
+	 * @return Returns the queue length.
+	 */
+	public static int getQueuedCount()
+	{
+		return sPool.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of tasks waiting for an I/O thread.
+	 * @return Returns the queue length.
+	 */
+	public static int getQueuedIOCount()
+	{
+		return sIoPool.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of tasks that were run on a thread of their own because their pool's queue was full.
+	 * @return Returns the overflow count.
+	 */
+	public static long getOverflowCount()
+	{
+		return sOverflowCount.get();
+	}
+
+	// Creates a fixed size pool of daemon threads with a bounded queue
+	private static ThreadPoolExecutor newPool( int threads, final String name )
+	{
+		return new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>( QUEUE_CAPACITY ), newThreadFactory( name ), sOverflowPolicy );
+	}
+
+	// Creates daemon threads with a name
+	private static ThreadFactory newThreadFactory( final String name )
+	{
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( Runnable runnable )
+			{
+				Thread thread = new Thread( runnable, name );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+	}
+	// Runs tasks in order, with at most one of them on an I/O thread at a time
+	private static final class SerialExecutor implements Executor
+	{
+		// Tasks waiting to run, guarded by itself
+		private final LinkedList<Runnable> fTasks = new LinkedList<Runnable>();
+		// Whether a worker is running the tasks
+		private boolean fActive = false;
+
+		// Runs every queued task, until there are none left
+		private final Runnable fDrain = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while ( true )
+				{
+					// The next task
+					Runnable task;
+					synchronized ( fTasks )
+					{
+						task = fTasks.poll();
+						if ( task == null )
+						{
+							fActive = false;
+							return;
+						}
+					}
+
+					// A failed task must not stop the ones after it
+					try
+					{
+						task.run();
+					}
+					catch ( RuntimeException ex )
+					{
+						PluginLog.error( "PayPal background task failed", ex );
+					}
+				}
+			}
+		};
+
+		@Override
+		public void execute( Runnable task )
+		{
+			// Queue the task, and start draining if nobody is
+			synchronized ( fTasks )
+			{
+				fTasks.add( task );
+				if ( fActive )
+				{
+					return;
+				}
+				fActive = true;
+			}
+			sPool.execute( fDrain );
+		}
+	}
+}
@@ -0,0 +1,131 @@
+//
+//  Prewarm.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Corona Imports
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+/**
+ * Warms up the PayPal SDK on a background thread, so the first payment sheet doesn't pay for it.
+ * <p>
+ * Loads and initializes the SDK and plugin classes used when showing a payment sheet and delivering its result.
+ */
+public class Prewarm implements Runnable
+{
+	// The classes loaded and initialized by the warm up
+	private static final String[] CLASS_NAMES =
+	{
+		"com.paypal.android.sdk.payments.PayPalService",
+		"com.paypal.android.sdk.payments.PayPalConfiguration",
+		"com.paypal.android.sdk.payments.PaymentActivity",
+		"com.paypal.android.sdk.payments.PayPalPayment",
+		"com.paypal.android.sdk.payments.PayPalPaymentDetails",
+		"com.paypal.android.sdk.payments.PaymentConfirmation",
+		"com.paypal.android.sdk.payments.PayPalFuturePaymentActivity",
+		"com.paypal.android.sdk.payments.PayPalAuthorization",
+		"org.json.JSONObject",
+		"java.math.BigDecimal",
+		"plugin.paypal.PayPalEventTask",
+		"plugin.paypal.LuaJsonTable",
+	};
+
+	// Set once a warm up has been started, it only needs to happen once per process
+	private static final AtomicBoolean sStarted = new AtomicBoolean( false );
+
+	// The dispatcher used to send the ready event
+	private final CoronaRuntimeTaskDispatcher fDispatcher;
+	// The init listener to send the ready event to, and the generation of its reference
+	private final int fListenerRef;
+	private final int fListenerGeneration;
+
+	// Create the warm up
+	private Prewarm( CoronaRuntimeTaskDispatcher dispatcher, int listenerRef, int listenerGeneration )
+	{
+		fDispatcher = dispatcher;
+		fListenerRef = listenerRef;
+		fListenerGeneration = listenerGeneration;
+	}
+
+	/**
+	 * Starts warming up the SDK on a background thread, then sends a ready event to the listener.
+	 * <p>
+	 * If the SDK has already been warmed up, the ready event is sent straight away.
+	 * @param dispatcher The dispatcher used to send the ready event.
+	 * @param listenerRef The init listener to send the ready event to.
+	 * @param listenerGeneration The generation of the listener reference.
+	 */
+	public static void start( CoronaRuntimeTaskDispatcher dispatcher, int listenerRef, int listenerGeneration )
+	{
+		Prewarm prewarm = new Prewarm( dispatcher, listenerRef, listenerGeneration );
+		if ( sStarted.compareAndSet( false, true ) )
+		{
+			Thread thread = new Thread( prewarm, "PayPal prewarm" );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			thread.start();
+		}
+		else
+		{
+			prewarm.sendReady( 0 );
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		long startNanos = System.nanoTime();
+
+		// Load and initialize each class
+		ClassLoader loader = Prewarm.class.getClassLoader();
+		for ( int i = 0; i < CLASS_NAMES.length; i++ )
+		{
+			try
+			{
+				Class.forName( CLASS_NAMES[i], true, loader );
+			}
+			catch ( Throwable ex )
+			{
+				PluginLog.warn( "payPal.init(), could not prewarm {}: {}", CLASS_NAMES[i], ex );
+			}
+		}
+
+		sendReady( System.nanoTime() - startNanos );
+	}
+
+	// Sends the ready event to the init listener
+	private void sendReady( long durationNanos )
+	{
+		fDispatcher.send( PayPalEventTask.obtain( PayPalEventTask.KIND_READY, PayPalEventTask.STATE_NONE, fListenerRef, fListenerGeneration )
+			.setDuration( durationNanos ) );
+	}
+}
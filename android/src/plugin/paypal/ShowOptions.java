@@ -0,0 +1,235 @@
+//
+//  ShowOptions.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Corona Imports
+import com.ansca.corona.CoronaLua;
+
+/**
+ * The decoded options table passed to show() in Lua.
+ */
+public class ShowOptions extends LuaOptions
+{
+	// The lua callback listener
+	public int listenerRef = CoronaLua.REFNIL;
+	// Whether a payment table was passed
+	public boolean hasPayment = false;
+	// Amount of payment, in minor units once checked
+	public long amount = 0;
+	// Whether an amount was passed
+	public boolean hasAmount = false;
+	// Tax on payment, in minor units once checked
+	public long tax = 0;
+	// Shipping on payment, in minor units once checked
+	public long shipping = 0;
+	// Amount plus tax plus shipping, in minor units once checked
+	public long total = 0;
+	// Number of decimal places of the amounts
+	public int scale = 2;
+	// Whether the amounts were passed as whole minor units rather than decimals
+	public boolean minorUnits = false;
+	// ID of the cart passed in place of an amount, 0 if none
+	public int cartId = 0;
+	// Amount, tax and shipping as passed from Lua, numbers in Lua's own formatting
+	private String fAmountText = null;
+	private String fTaxText = "0";
+	private String fShippingText = "0";
+	// Intent
+	public String paymentIntent = "sale";
+	// Currency code
+	public String currencyCode = null;
+	// Short Description
+	public String description = null;
+	// Accept credit cards?
+	public boolean acceptCreditCards = false;
+	// BN Code
+	public String bnCode = null;
+	// Whether the response is delivered as a Lua table rather than a JSON string
+	public boolean responseAsTable = false;
+
+	// The payment table
+	private final LuaOptions fPayment = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "amount" ) )
+			{
+				fAmountText = reader.readString();
+				hasAmount = fAmountText != null;
+			}
+			else if ( key.equals( "tax" ) ) fTaxText = reader.readString();
+			else if ( key.equals( "shipping" ) ) fShippingText = reader.readString();
+			else if ( key.equals( "minorUnits" ) ) minorUnits = reader.readBoolean( minorUnits );
+			else if ( key.equals( "intent" ) ) paymentIntent = reader.readString();
+			else return false;
+			return true;
+		}
+	};
+
+	// The cart table, only its ID is read
+	private final LuaOptions fCart = new LuaOptions()
+	{
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			// The cart's methods are functions and are skipped
+			if ( key.equals( "id" ) ) cartId = (int)reader.readNumber( cartId );
+			return true;
+		}
+	};
+
+	@Override
+	protected boolean onField( String key, LuaOptionsReader reader )
+	{
+		if ( key.equals( "listener" ) ) listenerRef = reader.readListener();
+		else if ( key.equals( "payment" ) ) hasPayment = reader.readTable( fPayment );
+		else if ( key.equals( "cart" ) ) reader.readTable( fCart );
+		else if ( key.equals( "currencyCode" ) ) currencyCode = reader.readString();
+		else if ( key.equals( "shortDescription" ) ) description = reader.readString();
+		else if ( key.equals( "acceptCreditCards" ) ) acceptCreditCards = reader.readBoolean( acceptCreditCards );
+		else if ( key.equals( "bnCode" ) ) bnCode = reader.readString();
+		else if ( key.equals( "responseFormat" ) ) readResponseFormat( reader );
+		else return false;
+		return true;
+	}
+
+	// Reads the response format, either "json" (the default) or "table"
+	private void readResponseFormat( LuaOptionsReader reader )
+	{
+		String format = reader.readString();
+		if ( "table".equalsIgnoreCase( format ) ) responseAsTable = true;
+		else if ( "json".equalsIgnoreCase( format ) ) responseAsTable = false;
+		else if ( format != null ) reader.addError( "responseFormat must be `json` or `table`, got `" + format + "`" );
+	}
+
+	/**
+	 * Reports missing required payment options to the reader.
+	 * @param reader The reader used to decode these options.
+	 */
+	public void validatePayment( LuaOptionsReader reader )
+	{
+		if ( cartId != 0 )
+		{
+			// A cart stands in for the amounts and the description
+			if ( hasAmount ) reader.addError( "pass either payment.amount or cart, not both" );
+		}
+		else
+		{
+			if ( hasPayment == false ) reader.addError( "payment table or cart expected, got nil" );
+			else if ( hasAmount == false ) reader.addError( "payment.amount number expected, got nil" );
+			if ( description == null ) reader.addError( "shortDescription expected, got nil" );
+		}
+		if ( paymentIntent == null ) paymentIntent = "sale";
+	}
+
+	/**
+	 * Checks the payment values against the currency table and converts the amounts to minor units,
+	 * without building any PayPal objects.
+	 * @return Returns a description of the first problem found, or null if the payment looks valid.
+	 */
+	public String checkPayment()
+	{
+		// Take the amounts from the cart, if one was passed
+		Cart cart = null;
+		if ( cartId != 0 )
+		{
+			cart = Cart.get( cartId );
+			if ( cart == null ) return "cart is not a cart from payPal.newCart()";
+			if ( cart.getCurrencyCode() != null )
+			{
+				if ( currencyCode == null ) currencyCode = cart.getCurrencyCode();
+				else if ( currencyCode.equals( cart.getCurrencyCode() ) == false ) return "currencyCode `" + currencyCode + "` does not match the cart's `" + cart.getCurrencyCode() + "`";
+			}
+		}
+
+		// Currency, left for PayPal to pick if not given
+		if ( currencyCode != null )
+		{
+			if ( CurrencyTable.isKnown( currencyCode ) == false ) return "currencyCode `" + currencyCode + "` is not an ISO 4217 currency code";
+			if ( CurrencyTable.isSupported( currencyCode ) == false ) return "currencyCode `" + currencyCode + "` is not supported by PayPal";
+			scale = CurrencyTable.getMinorUnits( currencyCode );
+		}
+
+		// A cart has been totalled as it was filled
+		if ( cart != null )
+		{
+			if ( cart.getScale() != scale ) return "cart amounts have " + cart.getScale() + " decimal places, " + currencyCode + " has " + scale;
+			if ( cart.getQuantity() == 0 ) return "cart is empty";
+			amount = cart.getSubtotal();
+			tax = cart.getTax();
+			shipping = cart.getShipping();
+			total = amount + tax + shipping;
+			if ( description == null ) description = cart.describe();
+			return checkDescriptionAndIntent();
+		}
+
+		// Amounts
+		if ( hasAmount == false ) return "payment.amount expected, got nil";
+		amount = toMinorUnits( fAmountText );
+		if ( amount == Money.INVALID ) return amountError( "amount", fAmountText );
+		tax = toMinorUnits( fTaxText );
+		if ( tax == Money.INVALID ) return amountError( "tax", fTaxText );
+		shipping = toMinorUnits( fShippingText );
+		if ( shipping == Money.INVALID ) return amountError( "shipping", fShippingText );
+		if ( amount <= 0 ) return "payment.amount must be greater than 0";
+		if ( tax < 0 ) return "payment.tax must not be negative";
+		if ( shipping < 0 ) return "payment.shipping must not be negative";
+		total = Money.add( Money.add( amount, tax ), shipping );
+		if ( total == Money.INVALID ) return "payment total is too large";
+		return checkDescriptionAndIntent();
+	}
+
+	// Checks the description and the payment intent
+	private String checkDescriptionAndIntent()
+	{
+		if ( description == null || description.length() == 0 ) return "shortDescription must not be empty";
+		if ( paymentIntent.equalsIgnoreCase( "sale" ) == false && paymentIntent.equalsIgnoreCase( "authorize" ) == false )
+		{
+			return "payment.intent must be `sale` or `authorize`, got `" + paymentIntent + "`";
+		}
+		return null;
+	}
+
+	// Converts an amount passed from Lua to minor units
+	private long toMinorUnits( String text )
+	{
+		return Money.parse( text, minorUnits ? 0 : scale );
+	}
+
+	// Describes an amount that could not be converted
+	private String amountError( String field, String text )
+	{
+		if ( minorUnits ) return "payment." + field + " must be a whole number of minor units, got `" + text + "`";
+		return "payment." + field + " must be a decimal number with at most " + scale + " decimal places" +
+			( currencyCode != null ? " for " + currencyCode : "" ) + ", got `" + text + "`";
+	}
+}
@@ -0,0 +1,84 @@
+//
+//  StripedCounter.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one memory location.
+ * <p>
+ * Each thread adds to one of several cells, picked by its thread id and spaced a cache line apart, and reads add
+ * the cells up. Works like java.util.concurrent.atomic.LongAdder, which isn't available on older Android versions.
+ */
+public class StripedCounter
+{
+	// Number of cells, a power of two
+	private static final int STRIPES = 8;
+	// Longs between cells, so each cell has a 64 byte cache line to itself
+	private static final int PADDING = 8;
+
+	// The cells
+	private final AtomicLongArray fCells = new AtomicLongArray( STRIPES * PADDING );
+
+	/**
+	 * Adds one.
+	 */
+	public void increment()
+	{
+		add( 1 );
+	}
+
+	/**
+	 * Adds a value.
+	 * @param value The value to add.
+	 */
+	public void add( long value )
+	{
+		long id = Thread.currentThread().getId();
+		int stripe = (int)( ( id ^ ( id >>> 3 ) ) & ( STRIPES - 1 ) );
+		fCells.addAndGet( stripe * PADDING, value );
+	}
+
+	/**
+	 * Gets the total. Concurrent adds may or may not be included.
+	 * @return Returns the sum of every cell.
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for ( int i = 0; i < STRIPES; i++ )
+		{
+			sum += fCells.get( i * PADDING );
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,507 @@
+//
+//  TokenExchange.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Corona Imports
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc Imports
+import org.json.JSONObject;
+
+/**
+ * Exchanges future payment authorization codes for OAuth tokens with the app's server, and keeps the tokens fresh.
+ * <p>
+ * When a future payment is authorized, its code is posted in the background as
+ * <code>{ "grant_type": "authorization_code", "code", "correlationID" }</code>. The server answers with
+ * <code>{ "access_token", "refresh_token", "expires_in" }</code>. Tokens are cached by correlation ID and refreshed
+ * with <code>{ "grant_type": "refresh_token", "refresh_token", "correlationID" }</code> shortly before they expire.
+ * Lua reads them with getAccessToken().
+ * <p>
+ * A token is only refreshed if Lua has read it since the last refresh. Otherwise it is left to expire, and the
+ * next read refreshes it first. The cache holds the tokens of at most MAX_TOKENS correlation IDs, dropping the
+ * ones read longest ago, and is emptied when config() turns token exchange off or points it at another URL.
+ */
+public class TokenExchange
+{
+	// How long to wait before trying a failed refresh again
+	private static final long RETRY_NANOS = 30L * 1000000000L;
+	// Most correlation IDs whose tokens are cached
+	private static final int MAX_TOKENS = 32;
+
+	// The exchange set by config(), null if token exchange is off
+	private static volatile TokenExchange sExchange = null;
+	// Tokens by correlation ID, every one of them from the current exchange's endpoint
+	private static final ConcurrentHashMap<String, Entry> sTokens = new ConcurrentHashMap<String, Entry>();
+
+	// Runs the exchanges and refreshes
+	private static final ScheduledThreadPoolExecutor sExecutor = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+	{
+		@Override
+		public Thread newThread( Runnable runnable )
+		{
+			Thread thread = new Thread( runnable, "PayPal token exchange" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	});
+
+	// A Lua listener waiting for a token
+	private static final class Waiter
+	{
+		final CoronaRuntimeTaskDispatcher fDispatcher;
+		final int fListenerRef;
+		final int fListenerGeneration;
+
+		Waiter( CoronaRuntimeTaskDispatcher dispatcher, int listenerRef, int listenerGeneration )
+		{
+			fDispatcher = dispatcher;
+			fListenerRef = listenerRef;
+			fListenerGeneration = listenerGeneration;
+		}
+	}
+
+	// The tokens of one correlation ID, guarded by itself
+	private static final class Entry
+	{
+		// The correlation ID
+		final String fCorrelationID;
+		// Whether a request is running that listeners wait for, the first exchange or a refresh after a quiet spell
+		boolean fPending = true;
+		// The access token, null if there is none
+		String fAccessToken;
+		// The refresh token, null if there is none
+		String fRefreshToken;
+		// When the access token expires
+		long fExpiresAtNanos;
+		// Why there is no access token
+		String fError;
+		// Listeners waiting for the running request
+		ArrayList<Waiter> fWaiters = new ArrayList<Waiter>();
+		// The entry of a newer code that replaced this one, listeners are sent there instead
+		Entry fReplacedBy;
+		// Whether Lua has read the token since the last refresh
+		boolean fRead = false;
+		// When Lua last read the token, or when the entry was created
+		volatile long fLastReadNanos = System.nanoTime();
+		// The scheduled refresh, null if none is scheduled
+		ScheduledFuture<?> fRefresh;
+
+		Entry( String correlationID )
+		{
+			fCorrelationID = correlationID;
+		}
+	}
+
+	// The token endpoint
+	private final URL fURL;
+	// The token endpoint as text, compared by configure()
+	private final String fEndpoint;
+	// How long before expiry a token is refreshed, in nanoseconds
+	private final long fRefreshMarginNanos;
+	// Request timeout in milliseconds
+	private final int fTimeout;
+
+	// Exchanges are created by configure()
+	private TokenExchange( URL url, long refreshMarginNanos, int timeout )
+	{
+		fURL = url;
+		fEndpoint = url.toExternalForm();
+		fRefreshMarginNanos = refreshMarginNanos;
+		fTimeout = timeout;
+	}
+
+	/**
+	 * Turns token exchange on or off for authorizations that arrive from now on.
+	 * <p>
+	 * Turning it off or changing the URL drops the cached tokens and cancels their refreshes, so refresh tokens
+	 * are never sent to an endpoint other than the one that issued them.
+	 * @param url The token endpoint, null to turn token exchange off.
+	 * @param refreshMargin How long before expiry a token is refreshed, in seconds.
+	 * @param timeout The request timeout in milliseconds.
+	 */
+	public static synchronized void configure( String url, double refreshMargin, int timeout )
+	{
+		TokenExchange exchange = null;
+		if ( url != null )
+		{
+			try
+			{
+				exchange = new TokenExchange( new URL( url ), (long)( Math.max( 0, refreshMargin ) * 1000000000.0 ), Math.max( 0, timeout ) );
+			}
+			catch ( MalformedURLException ex )
+			{
+				PluginLog.error( "payPal.config(), tokenExchange.url is not a valid URL: {}", url );
+			}
+		}
+
+		// The cached tokens can only be refreshed by the endpoint that issued them
+		TokenExchange previous = sExchange;
+		sExchange = exchange;
+		if ( previous != null && ( exchange == null || exchange.fEndpoint.equals( previous.fEndpoint ) == false ) )
+		{
+			for ( Entry entry : sTokens.values() )
+			{
+				if ( sTokens.remove( entry.fCorrelationID, entry ) )
+				{
+					drop( entry, "token exchange was turned off or moved to another URL" );
+				}
+			}
+			sExecutor.purge();
+		}
+	}
+
+	/**
+	 * Starts exchanging a future payment authorization code in the background, if token exchange is on.
+	 * @param correlationID The PayPal application correlation ID the tokens are cached by.
+	 * @param code The authorization code.
+	 */
+	public static void start( String correlationID, final String code )
+	{
+		final TokenExchange exchange = sExchange;
+		if ( exchange == null || correlationID == null || code == null )
+		{
+			return;
+		}
+
+		// Listeners waiting for an earlier code get the new one. Both entries are locked, as the new one is already
+		// visible to get(), and the old one points at the new one for any get() that found it before the swap
+		final Entry entry = new Entry( correlationID );
+		Entry previous = sTokens.put( correlationID, entry );
+		if ( previous != null )
+		{
+			synchronized ( previous )
+			{
+				synchronized ( entry )
+				{
+					entry.fWaiters.addAll( previous.fWaiters );
+					previous.fWaiters.clear();
+					previous.fReplacedBy = entry;
+					if ( previous.fRefresh != null )
+					{
+						previous.fRefresh.cancel( false );
+						previous.fRefresh = null;
+					}
+				}
+			}
+		}
+
+		// Keep the cache small, dropping the tokens read longest ago
+		while ( sTokens.size() > MAX_TOKENS )
+		{
+			Entry oldest = null;
+			for ( Entry cached : sTokens.values() )
+			{
+				if ( cached != entry && ( oldest == null || cached.fLastReadNanos - oldest.fLastReadNanos < 0 ) )
+				{
+					oldest = cached;
+				}
+			}
+			if ( oldest != null && sTokens.remove( oldest.fCorrelationID, oldest ) )
+			{
+				drop( oldest, "the authorization was dropped from the token cache" );
+			}
+		}
+
+		sExecutor.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				exchange.request( entry, "authorization_code", "code", code );
+			}
+		});
+	}
+
+	/**
+	 * Sends the access token of a correlation ID to a Lua listener, once the exchange has finished if it is running.
+	 * <p>
+	 * A token that was left to expire because nobody read it is refreshed first.
+	 * @param correlationID The PayPal application correlation ID.
+	 * @param dispatcher The dispatcher to send the event with.
+	 * @param listenerRef The listener.
+	 * @param listenerGeneration The generation of the listener reference.
+	 */
+	public static void get( String correlationID, CoronaRuntimeTaskDispatcher dispatcher, int listenerRef, int listenerGeneration )
+	{
+		Entry entry = sTokens.get( correlationID );
+		if ( entry == null )
+		{
+			dispatcher.send( PayPalEventTask.obtain( PayPalEventTask.KIND_ACCESS_TOKEN, PayPalEventTask.STATE_NONE, listenerRef, listenerGeneration )
+				.setAccessToken( correlationID, null, 0, "no authorization for this correlation ID" ) );
+			return;
+		}
+
+		// Wait for the running request of the newest code
+		while ( true )
+		{
+			Entry next;
+			synchronized ( entry )
+			{
+				next = entry.fReplacedBy;
+				if ( next == null )
+				{
+					entry.fRead = true;
+					entry.fLastReadNanos = System.nanoTime();
+
+					// Start refreshing again a token nobody read for a while
+					if ( entry.fPending == false && entry.fRefresh == null && entry.fRefreshToken != null )
+					{
+						resume( entry );
+					}
+					if ( entry.fPending )
+					{
+						entry.fWaiters.add( new Waiter( dispatcher, listenerRef, listenerGeneration ) );
+						return;
+					}
+				}
+			}
+			if ( next == null )
+			{
+				break;
+			}
+			entry = next;
+		}
+		send( entry, dispatcher, listenerRef, listenerGeneration );
+	}
+
+	// Schedules the refresh of a token that is no longer being refreshed, or runs it now and has get() wait for it
+	// if the token is about to expire. Called with the entry locked
+	private static void resume( Entry entry )
+	{
+		TokenExchange exchange = sExchange;
+		if ( exchange == null || sTokens.get( entry.fCorrelationID ) != entry )
+		{
+			return;
+		}
+
+		long delayNanos = entry.fExpiresAtNanos - exchange.fRefreshMarginNanos - System.nanoTime();
+		if ( delayNanos <= 0 )
+		{
+			entry.fPending = true;
+			delayNanos = 0;
+		}
+		scheduleRefresh( entry, delayNanos );
+	}
+
+	// Schedules an entry's refresh, called with the entry locked
+	private static void scheduleRefresh( final Entry entry, long delayNanos )
+	{
+		entry.fRefresh = sExecutor.schedule( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				refresh( entry );
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS );
+	}
+
+	// Refreshes an entry's token with the current exchange, unless nobody has read it since the last refresh
+	private static void refresh( Entry entry )
+	{
+		TokenExchange exchange = sExchange;
+		String refreshToken;
+		synchronized ( entry )
+		{
+			// Let it expire if nobody has read it, the next get() starts refreshing it again.
+			// Otherwise fRefresh stays set while the request runs, so get() doesn't start another
+			if ( exchange == null || sTokens.get( entry.fCorrelationID ) != entry || ( entry.fRead == false && entry.fPending == false ) )
+			{
+				entry.fRefresh = null;
+				return;
+			}
+			entry.fRead = false;
+			refreshToken = entry.fRefreshToken;
+		}
+		exchange.request( entry, "refresh_token", "refresh_token", refreshToken );
+	}
+
+	// Cancels the refresh of an entry that has been taken out of the cache, and answers the listeners waiting for it
+	private static void drop( Entry entry, String error )
+	{
+		ArrayList<Waiter> waiters;
+		synchronized ( entry )
+		{
+			if ( entry.fRefresh != null )
+			{
+				entry.fRefresh.cancel( false );
+				entry.fRefresh = null;
+			}
+			entry.fAccessToken = null;
+			entry.fRefreshToken = null;
+			entry.fError = error;
+			entry.fPending = false;
+			waiters = entry.fWaiters;
+			entry.fWaiters = new ArrayList<Waiter>();
+		}
+		sendAll( entry, waiters );
+	}
+
+	// Sends the current token of an entry to listeners
+	private static void sendAll( Entry entry, ArrayList<Waiter> waiters )
+	{
+		for ( int i = 0; i < waiters.size(); i++ )
+		{
+			send( entry, waiters.get( i ).fDispatcher, waiters.get( i ).fListenerRef, waiters.get( i ).fListenerGeneration );
+		}
+	}
+
+	// Sends the current token of an entry to a listener
+	private static void send( Entry entry, CoronaRuntimeTaskDispatcher dispatcher, int listenerRef, int listenerGeneration )
+	{
+		String accessToken;
+		String error;
+		long expiresInNanos;
+		boolean refreshable;
+		synchronized ( entry )
+		{
+			accessToken = entry.fAccessToken;
+			error = entry.fError;
+			expiresInNanos = entry.fExpiresAtNanos - System.nanoTime();
+			refreshable = entry.fRefreshToken != null;
+		}
+
+		// Never hand out an expired token, and drop it from the cache if it can't be refreshed
+		if ( accessToken != null && expiresInNanos <= 0 )
+		{
+			accessToken = null;
+			error = "the access token has expired";
+			if ( refreshable == false )
+			{
+				sTokens.remove( entry.fCorrelationID, entry );
+			}
+		}
+
+		dispatcher.send( PayPalEventTask.obtain( PayPalEventTask.KIND_ACCESS_TOKEN, PayPalEventTask.STATE_NONE, listenerRef, listenerGeneration )
+			.setAccessToken( entry.fCorrelationID, accessToken, Math.max( 0, expiresInNanos ), error ) );
+	}
+
+	// Posts a token request and updates the entry with the answer, on the executor
+	private void request( final Entry entry, String grantType, String key, String value )
+	{
+		// Stop if a newer authorization replaced this entry, or it was dropped
+		if ( sTokens.get( entry.fCorrelationID ) != entry )
+		{
+			return;
+		}
+
+		long delayNanos = -1;
+		try
+		{
+			JSONObject body = new JSONObject();
+			body.put( "grant_type", grantType );
+			body.put( key, value );
+			body.put( "correlationID", entry.fCorrelationID );
+			JSONObject response = JsonHttp.post( fURL, body, fTimeout );
+
+			String accessToken = response.optString( "access_token", null );
+			if ( accessToken == null )
+			{
+				throw new IOException( "token server returned no access_token" );
+			}
+			long expiresIn = response.optLong( "expires_in", 0 );
+			if ( expiresIn <= 0 )
+			{
+				throw new IOException( "token server returned no expires_in" );
+			}
+			long expiresInNanos = expiresIn * 1000000000L;
+
+			synchronized ( entry )
+			{
+				entry.fAccessToken = accessToken;
+				entry.fRefreshToken = response.optString( "refresh_token", entry.fRefreshToken );
+				entry.fExpiresAtNanos = System.nanoTime() + expiresInNanos;
+				entry.fError = null;
+
+				// Refresh ahead of expiry
+				if ( entry.fRefreshToken != null )
+				{
+					delayNanos = Math.max( 0, expiresInNanos - fRefreshMarginNanos );
+				}
+			}
+		}
+		catch ( Exception ex )
+		{
+			synchronized ( entry )
+			{
+				entry.fError = ex.toString();
+
+				// Try the refresh again while the current token is still good, it was wanted
+				if ( entry.fRefreshToken != null && entry.fExpiresAtNanos - System.nanoTime() > RETRY_NANOS )
+				{
+					delayNanos = RETRY_NANOS;
+					entry.fRead = true;
+				}
+			}
+			PluginLog.error( "payPal token exchange, {} request failed: {}", grantType, ex );
+		}
+
+		// Hand the result to the listeners waiting for it, and schedule the refresh unless the entry was dropped
+		// or replaced while the request was running
+		ArrayList<Waiter> waiters = null;
+		synchronized ( entry )
+		{
+			if ( entry.fPending )
+			{
+				entry.fPending = false;
+				waiters = entry.fWaiters;
+				entry.fWaiters = new ArrayList<Waiter>();
+			}
+			entry.fRefresh = null;
+			if ( delayNanos >= 0 && sTokens.get( entry.fCorrelationID ) == entry && isCurrent() )
+			{
+				scheduleRefresh( entry, delayNanos );
+			}
+		}
+		if ( waiters != null )
+		{
+			sendAll( entry, waiters );
+		}
+	}
+
+	// Checks if this exchange's endpoint is the one config() set last
+	private boolean isCurrent()
+	{
+		TokenExchange exchange = sExchange;
+		return exchange != null && exchange.fEndpoint.equals( fEndpoint );
+	}
+}
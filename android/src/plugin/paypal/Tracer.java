@@ -0,0 +1,315 @@
+//
+//  Tracer.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java Imports
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Corona Imports
+import com.ansca.corona.CoronaEnvironment;
+
+/**
+ * Records timed spans of each show() request, from parsing its options to dispatching its result to Lua.
+ * <p>
+ * Spans go into a fixed size ring buffer without locking, and are written to the binary file
+ * <code>plugin.paypal.trace</code> in the app's files directory on a background thread, once half the ring is
+ * waiting or when the app is suspended. When tracing is off, recording a span costs one volatile read.
+ * <p>
+ * The file starts with the magic number "PPT1", followed by 24 byte big endian records of
+ * <code>int requestID, int span, long startNanos, long durationNanos</code>. A {@link #SPAN_SESSION} record,
+ * whose start is System.nanoTime() and whose duration is System.currentTimeMillis() at the same moment, starts
+ * the spans of each process, so their times can be turned into wall clock times.
+ */
+public class Tracer
+{
+	// Span types
+	public static final int SPAN_SESSION = 0;
+	public static final int SPAN_PARSE_OPTIONS = 1;
+	public static final int SPAN_IS_PROCESSABLE = 2;
+	public static final int SPAN_START_ACTIVITY = 3;
+	public static final int SPAN_ACTIVITY = 4;
+	public static final int SPAN_EXTRACT_JSON = 5;
+	public static final int SPAN_LUA_DISPATCH = 6;
+
+	// The trace file name, in the app's files directory
+	private static final String FILE_NAME = "plugin.paypal.trace";
+	// Magic number at the start of the file, "PPT1"
+	private static final int MAGIC = 0x50505431;
+	// Size the file may grow to before it is moved aside and a new one started
+	private static final long MAX_FILE_SIZE = 1024 * 1024;
+	// Number of spans the ring holds, a power of two
+	private static final int CAPACITY = 1024;
+	private static final int MASK = CAPACITY - 1;
+
+	// Whether spans are recorded
+	private static volatile boolean sEnabled = false;
+
+	// The ring. A slot's sequence number is set to minus the new one while its fields are being written, and to
+	// the new one once they have been. The fields are atomic too, so their writes can't move around the markers
+	private static final AtomicIntegerArray sRequestIDs = new AtomicIntegerArray( CAPACITY );
+	private static final AtomicIntegerArray sSpans = new AtomicIntegerArray( CAPACITY );
+	private static final AtomicLongArray sStarts = new AtomicLongArray( CAPACITY );
+	private static final AtomicLongArray sDurations = new AtomicLongArray( CAPACITY );
+	private static final AtomicLongArray sSlotSequences = new AtomicLongArray( CAPACITY );
+	// Sequence number of the next span to record
+	private static final AtomicLong sNext = new AtomicLong();
+	// Sequence number of the next span to write to the file
+	private static volatile long sFlushed = 0;
+	// Number of spans overwritten before they could be written
+	private static final AtomicLong sDropped = new AtomicLong();
+	// Whether a flush has been queued and not run yet
+	private static final AtomicBoolean sFlushQueued = new AtomicBoolean( false );
+	// Whether the session record for this process has been written
+	private static boolean sSessionWritten = false;
+
+	// Runs the file writes, one at a time
+	private static final Executor sWriter = PluginWorkers.newSerialExecutor();
+
+	// Writes the waiting spans to the file
+	private static final Runnable sFlushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			sFlushQueued.set( false );
+			write();
+		}
+	};
+
+	/**
+	 * Turns tracing on or off.
+	 * @param enabled Whether spans are recorded.
+	 */
+	public static void setEnabled( boolean enabled )
+	{
+		sEnabled = enabled;
+	}
+
+	/**
+	 * Checks if tracing is on.
+	 * @return Returns true if spans are recorded.
+	 */
+	public static boolean isEnabled()
+	{
+		return sEnabled;
+	}
+
+	/**
+	 * Starts timing a span.
+	 * @return Returns the start time, or 0 if tracing is off.
+	 */
+	public static long start()
+	{
+		return sEnabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Ends a span started with {@link #start}. Does nothing if tracing was off when it started.
+	 * @param requestID The show() request ID.
+	 * @param span The span type.
+	 * @param startNanos The value returned by start().
+	 */
+	public static void end( int requestID, int span, long startNanos )
+	{
+		if ( startNanos != 0 )
+		{
+			record( requestID, span, startNanos, System.nanoTime() );
+		}
+	}
+
+	/**
+	 * Records a span whose times are already known. Does nothing if tracing is off.
+	 * @param requestID The show() request ID.
+	 * @param span The span type.
+	 * @param startNanos When the span started.
+	 * @param endNanos When the span ended.
+	 */
+	public static void record( int requestID, int span, long startNanos, long endNanos )
+	{
+		if ( sEnabled == false || startNanos == 0 )
+		{
+			return;
+		}
+
+		// Claim a slot, mark it as being written, fill it in and publish it
+		long sequence = sNext.getAndIncrement();
+		int slot = (int)( sequence & MASK );
+		sSlotSequences.set( slot, -( sequence + 1 ) );
+		sRequestIDs.set( slot, requestID );
+		sSpans.set( slot, span );
+		sStarts.set( slot, startNanos );
+		sDurations.set( slot, endNanos - startNanos );
+		sSlotSequences.set( slot, sequence + 1 );
+
+		// Write the ring out once half of it is waiting
+		if ( sequence - sFlushed >= CAPACITY / 2 )
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the recorded spans to the file in the background, such as when the app is suspended.
+	 */
+	public static void flush()
+	{
+		if ( sNext.get() != sFlushed && sFlushQueued.compareAndSet( false, true ) )
+		{
+			sWriter.execute( sFlushTask );
+		}
+	}
+
+	/**
+	 * Gets the number of spans that were overwritten in the ring before they could be written to the file.
+	 * @return Returns the number of dropped spans.
+	 */
+	public static long getDroppedCount()
+	{
+		return sDropped.get();
+	}
+
+	// Writes the published spans to the file, by the writer
+	private static void write()
+	{
+		long end = sNext.get();
+		long from = sFlushed;
+		if ( end - from > CAPACITY )
+		{
+			sDropped.addAndGet( end - from - CAPACITY );
+			from = end - CAPACITY;
+		}
+
+		DataOutputStream out = null;
+		try
+		{
+			out = open();
+			if ( sSessionWritten == false )
+			{
+				writeRecord( out, 0, SPAN_SESSION, System.nanoTime(), System.currentTimeMillis() );
+				sSessionWritten = true;
+			}
+
+			long sequence = from;
+			for ( ; sequence < end; sequence++ )
+			{
+				// Stop at a span that hasn't been written yet or is still being written, it goes out with the next flush
+				int slot = (int)( sequence & MASK );
+				long published = sSlotSequences.get( slot );
+				long claimed = published < 0 ? -published : published;
+				if ( claimed < sequence + 1 || published == -( sequence + 1 ) )
+				{
+					break;
+				}
+
+				// Skip a span that a newer one has overwritten or started to
+				if ( published != sequence + 1 )
+				{
+					sDropped.incrementAndGet();
+					continue;
+				}
+
+				// Read the slot
+				int requestID = sRequestIDs.get( slot );
+				int span = sSpans.get( slot );
+				long start = sStarts.get( slot );
+				long duration = sDurations.get( slot );
+
+				// Skip it if it was overwritten while being read
+				if ( sSlotSequences.get( slot ) != sequence + 1 )
+				{
+					sDropped.incrementAndGet();
+					continue;
+				}
+				writeRecord( out, requestID, span, start, duration );
+			}
+			sFlushed = sequence;
+		}
+		catch ( IOException ex )
+		{
+			PluginLog.error( "payPal trace, could not be written", ex );
+		}
+		finally
+		{
+			if ( out != null )
+			{
+				try
+				{
+					out.close();
+				}
+				catch ( IOException ex )
+				{
+					PluginLog.error( "payPal trace, could not be closed", ex );
+				}
+			}
+		}
+	}
+
+	// Opens the file for appending, starting a new one when it is full
+	private static DataOutputStream open() throws IOException
+	{
+		File file = new File( CoronaEnvironment.getApplicationContext().getFilesDir(), FILE_NAME );
+		if ( file.length() > MAX_FILE_SIZE )
+		{
+			// Keep the previous file around to pull as well
+			File old = new File( file.getPath() + ".old" );
+			old.delete();
+			file.renameTo( old );
+			sSessionWritten = false;
+		}
+
+		boolean isNew = file.exists() == false || file.length() == 0;
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+		if ( isNew )
+		{
+			out.writeInt( MAGIC );
+			sSessionWritten = false;
+		}
+		return out;
+	}
+
+	// Writes one record
+	private static void writeRecord( DataOutputStream out, int requestID, int span, long start, long duration ) throws IOException
+	{
+		out.writeInt( requestID );
+		out.writeInt( span );
+		out.writeLong( start );
+		out.writeLong( duration );
+	}
+}
@@ -47,9 +47,13 @@ import org.json.JSONException;
 
 // Android Imports
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 
 // Paypal Imports
 import com.paypal.android.sdk.payments.PayPalAuthorization;
@@ -67,6 +71,9 @@ import com.paypal.android.sdk.payments.PaymentConfirmation;
  */
 public class config implements com.naef.jnlua.NamedJavaFunction 
 {
+	// The options the verifier and token exchange were last configured with, they are shared by every runtime
+	private static ConfigOptions sServerOptions = null;
+
 	/**
 	 * Gets the name of the Lua function as it would appear in the Lua script.
 	 * @return Returns the name of the custom Lua function.
@@ -88,6 +95,9 @@ public class config implements com.naef.jnlua.NamedJavaFunction
 	@Override
 	public int invoke( LuaState luaState ) 
 	{
+		// When the call started
+		long startNanos = System.nanoTime();
+
 		try
 		{
 			// This requires an options table with the following params
@@ -115,207 +125,88 @@ public class config implements com.naef.jnlua.NamedJavaFunction
 					email = "me@me.com", (optional) -- The users email to prefil the login form with.
 					phoneNumber = "0873895538", (optional) -- The users phone number to prefil the login form with.
 					phoneCountryCode = "+353", (optional) -- The users phone country code.
+				},
+				verification = -- table (optional)
+				{
+					url = "https://example.com/verify", (required) -- The endpoint confirmations are POSTed to before they reach the listener.
+					attempts = 3, (optional) -- The number of times a request is tried. Default is 3.
+					timeout = 10000, (optional) -- The request timeout in milliseconds. Default is 10000.
+				},
+				tokenExchange = -- table (optional)
+				{
+					url = "https://example.com/token", (required) -- The endpoint future payment authorization codes are exchanged at.
+					refreshMargin = 60, (optional) -- How many seconds before expiry a token is refreshed. Default is 60.
+					timeout = 10000, (optional) -- The request timeout in milliseconds. Default is 10000.
 				}
 			*/
 
+			// The context of this runtime
+			final PluginContext context = PluginContext.get( luaState );
+
 			// If PayPal has not been initialized
-			if ( paypal.hasCalledInit == false )
+			if ( context.getState() == PluginContext.STATE_UNINITIALIZED )
 			{
-				System.out.println( "Error: You must call payPal.init() before calling payPal.config()\n" );
+				PluginLog.error( "You must call payPal.init() before calling payPal.config()" );
 				return 0;
 			}
 
-			// Paypal production client ID
-			String productionClientID = null;
-			// Paypal Sandbox client ID
-			String sandboxClientID = null;
-			// Accept Credit Cards bool
-			boolean acceptCreditCards = false;
-			// The langauge the Paypal view controllers will use
-			String language = null;
-			// The name of the Paypal Merchant
-			String merchantName = null;
-			// The Paypal merchants privacy policy URL
-			String merchantPrivacyPolicyURL = "https://www.paypal.com/webapps/mpp/ua/privacy-full";
-			// The Paypal merchants user agreement policy URL
-			String merchantUserAgreementURL = "https://www.paypal.com/webapps/mpp/ua/useragreement-full";
-			// Paypal Environment
-			String environment = null;
-			// Remember user
-			boolean rememberUser = true;
-			// Use sandbox defaults
-			boolean useSandboxDefaults = false;
-			// Sandbox password
-			String sandboxPassword = null;
-			// Sandbox Pin
-			String sandboxPin = null;
-			// Email
-			String email = null;
-			// Phone Number
-			String phoneNumber = null;
-			// Phone Country code
-			String phoneCountryCode = null;
+			// Decode the options table in a single pass
+			LuaOptionsReader reader = new LuaOptionsReader( luaState, "payPal.config()" );
+			ConfigOptions options = new ConfigOptions();
 
 			// If an options table has been passed
-			if ( luaState.isTable( -1 ) )
+			if ( reader.read( -1, options ) )
 			{
-				// Production ID
-				luaState.getField( -1, "productionClientID" );
-				if ( luaState.isString( -1 ) )
-				{
-					productionClientID = luaState.checkString( -1 );
-				}
-				else
-				{
-					System.out.println( "Error: productionClientID expected, got " + luaState.typeName( -1 ) + "\n" );
-				}
-				luaState.pop( 1 );
+				// Report anything missing, unknown or of the wrong type
+				options.validate( reader );
+				reader.printErrors();
 
-				// Sandbox ID
-				luaState.getField( -1, "sandboxClientID" );
-				if ( luaState.isString( -1 ) )
-				{
-					sandboxClientID = luaState.checkString( -1 );
-				}
-				else
-				{
-					System.out.println( "Error: sandboxClientID expected, got " + luaState.typeName( -1 ) + "\n" );
-				}
-				luaState.pop( 1 );
-
-				// Accept Credit Cards
-				luaState.getField( -1, "acceptCreditCards" );
-				if ( luaState.isBoolean( -1 ) )
-				{
-					acceptCreditCards = luaState.checkBoolean( -1 );
-				}
-				luaState.pop( 1 );
-
-				// Language
-				luaState.getField( -1, "language" );
-				if ( luaState.isString( -1 ) )
-				{
-					language = luaState.checkString( -1 );
-				}
-				luaState.pop( 1 );
-
-				// Merchant
-				luaState.getField( -1, "merchant" );
-				if ( luaState.isTable( -1 ) )
-				{
-					// Merchant Name
-					luaState.getField( -1, "name" );
-					if ( luaState.isString( -1 ) )
-					{
-						merchantName = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Merchant Privacy Policy URL
-					luaState.getField( -1, "privacyPolicyURL" );
-					if ( luaState.isString( -1 ) )
-					{
-						merchantPrivacyPolicyURL = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Merchant User Agreement URL
-					luaState.getField( -1, "userAgreementURL" );
-					if ( luaState.isString( -1 ) )
-					{
-						merchantUserAgreementURL = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-				}
-				luaState.pop( 1 );
-
-				// Environment
-				luaState.getField( -1, "environment" );
-				if ( luaState.isString( -1 ) )
-				{
-					environment = luaState.checkString( -1 );
-				}
-				luaState.pop( 1 );
-				
-				// Remember user
-				luaState.getField( -1, "rememberUser" );
-				if ( luaState.isBoolean( -1 ) )
-				{
-					rememberUser = luaState.checkBoolean( -1 );
-				}
+				// Pop the options table
 				luaState.pop( 1 );
+				reader.countCalls( 1 );
+			}
+			// No options table passed in
+			else
+			{
+				PluginLog.error( "payPal.config(), options table expected, got {}", luaState.typeName( -1 ) );
+				reader.countCalls( 1 );
+			}
 
-				// Sandbox
-				luaState.getField( -1, "sandbox" );
-				
-				// If sandbox is a table
-				if ( luaState.isTable( -1 ) )
-				{
-					// Use defaults
-					luaState.getField( -1, "useDefaults" );
-					if ( luaState.isBoolean( -1 ) )
-					{
-						useSandboxDefaults = luaState.checkBoolean( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Sandbox password
-					luaState.getField( -1, "password" );
-					if ( luaState.isString( -1 ) )
-					{
-						sandboxPassword = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Sandbox pin
-					luaState.getField( -1, "pin" );
-					if ( luaState.isString( -1 ) )
-					{
-						sandboxPin = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-				}
-				luaState.pop( 1 );
+			// Record the number of JNI calls made
+			JniCallCounter.record( JniCallCounter.CONFIG, reader.getCallCount() );
 
-				// User
-				luaState.getField( -1, "user" );
-				
-				// If user is a table
-				if ( luaState.isTable( -1 ) )
+			// Server verification and token exchange don't involve the PayPal service, so they are applied on their own,
+			// and only when they changed
+			synchronized ( config.class )
+			{
+				if ( options.sameServersAs( sServerOptions ) == false )
 				{
-					// Email
-					luaState.getField( -1, "email" );
-					if ( luaState.isString( -1 ) )
-					{
-						email = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Phone Number
-					luaState.getField( -1, "phoneNumber" );
-					if ( luaState.isString( -1 ) )
-					{
-						phoneNumber = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
-					
-					// Phone Country Code
-					luaState.getField( -1, "phoneCountryCode" );
-					if ( luaState.isString( -1 ) )
-					{
-						phoneCountryCode = luaState.checkString( -1 );
-					}
-					luaState.pop( 1 );
+					PaymentVerifier.configure( options.verificationURL, options.verificationAttempts, options.verificationTimeout );
+					TokenExchange.configure( options.tokenExchangeURL, options.tokenExchangeRefreshMargin, options.tokenExchangeTimeout );
+					sServerOptions = options;
 				}
-				// Pop the user and options table
-				luaState.pop( 2 );
 			}
-			// No options table passed in
-			else
+
+			// Nothing has changed since the service was last started, so don't restart it
+			if ( context.getState() >= PluginContext.STATE_CONFIGURED && options.sameAs( context.appliedOptions, true ) )
 			{
-				System.out.println( "Error: payPal.config(), options table expected, got " + luaState.typeName( -1 ) );
+				paypal.serviceStartsAvoided.incrementAndGet();
+				return 0;
 			}
 
+			// Paypal production client ID
+			String productionClientID = options.productionClientID;
+			// Paypal Sandbox client ID
+			String sandboxClientID = options.sandboxClientID;
+			// Paypal Environment
+			String environment = options.environment;
+			// Use sandbox defaults
+			boolean useSandboxDefaults = options.useSandboxDefaults;
+			// Sandbox password
+			String sandboxPassword = options.sandboxPassword;
+			// Sandbox Pin
+			String sandboxPin = options.sandboxPin;
+
 			// The PayPal Environment string
 			String paypalEnvironment = null;
 			// The client id, set differently if mode is sandbox or production
@@ -344,21 +235,22 @@ public class config implements com.naef.jnlua.NamedJavaFunction
 				paypalEnvironment = PayPalConfiguration.ENVIRONMENT_PRODUCTION;
 			}
 
-			// Create a paypal configuration object
+			// Create a paypal configuration object. Always a new one, even if only the environment or client IDs
+			// changed, the service may still hold the last one
     		PayPalConfiguration payPalConfig = new PayPalConfiguration()
             .environment( paypalEnvironment )
             .clientId( theClientID )
             // Set user defaults
-            .defaultUserEmail( email )
-            .defaultUserPhone( phoneNumber )
-            .defaultUserPhoneCountryCode( phoneCountryCode )
+            .defaultUserEmail( options.email )
+            .defaultUserPhone( options.phoneNumber )
+            .defaultUserPhoneCountryCode( options.phoneCountryCode )
             // Set PayPal config options
-            .acceptCreditCards( acceptCreditCards )
-            .languageOrLocale( language )
-            .merchantName( merchantName )
-            .merchantPrivacyPolicyUri( Uri.parse( merchantPrivacyPolicyURL ) )
-            .merchantUserAgreementUri( Uri.parse( merchantUserAgreementURL ) )
-            .rememberUser( rememberUser )
+            .acceptCreditCards( options.acceptCreditCards )
+            .languageOrLocale( options.language )
+            .merchantName( options.merchantName )
+            .merchantPrivacyPolicyUri( Uri.parse( options.merchantPrivacyPolicyURL ) )
+            .merchantUserAgreementUri( Uri.parse( options.merchantUserAgreementURL ) )
+            .rememberUser( options.rememberUser )
             // Set sandbox options
             .forceDefaultsOnSandbox( useSandboxDefaults )
             .sandboxUserPin( sandboxPin )
@@ -370,13 +262,13 @@ public class config implements com.naef.jnlua.NamedJavaFunction
 				// Sandbox password
 				if ( sandboxPassword == null )
 				{
-					System.out.println( "Error: You have set sandbox useDefaults to true, but have not specified a password in your sandbox table\n " );
+					PluginLog.error( "You have set sandbox useDefaults to true, but have not specified a password in your sandbox table" );
 				}
 				
 				// Sandbox pin
 				if ( sandboxPin == null )
 				{
-					System.out.println( "Error: You have set sandbox useDefaults to true, but have not specified a pin in your sandbox table\n " );
+					PluginLog.error( "You have set sandbox useDefaults to true, but have not specified a pin in your sandbox table" );
 				}
 			}
 
@@ -408,16 +300,59 @@ public class config implements com.naef.jnlua.NamedJavaFunction
 			    paypalIntent.putExtra( PayPalService.EXTRA_PAYPAL_CONFIGURATION, payPalConfig );
 			    coronaActivity.startService( paypalIntent );
 
+			    // Remember what the service was started with
+			    context.appliedOptions = options;
+
 			    // We have called config.
-			    paypal.hasCalledConfig = true;
+			    context.advanceState( PluginContext.STATE_CONFIGURED );
+
+			    // startService() returns before the service has been created, so bind to it without creating it. The
+			    // connection is made once the service is up, then the plugin is ready and requests made while
+			    // waiting for config() can go
+			    final CoronaActivity activity = coronaActivity;
+			    final Context appContext = coronaActivity.getApplicationContext();
+			    ServiceConnection connection = new ServiceConnection()
+			    {
+			    	@Override
+			    	public void onServiceConnected( ComponentName name, IBinder service )
+			    	{
+			    		appContext.unbindService( this );
+			    		onServiceStarted( context, activity );
+			    	}
+
+			    	@Override
+			    	public void onServiceDisconnected( ComponentName name )
+			    	{
+			    	}
+			    };
+			    if ( appContext.bindService( new Intent( appContext, PayPalService.class ), connection, 0 ) == false )
+			    {
+			    	// Without a connection there is no telling when the service is up, so don't hold requests back
+			    	PluginLog.warn( "payPal.config(), could not bind to {}, showing waiting requests now", PayPalService.class.getName() );
+			    	onServiceStarted( context, activity );
+			    }
 			}
 		}
 		catch( Exception ex )
 		{
 			// An exception will occur if given an invalid argument or no argument. Print the error.
-			ex.printStackTrace();
+			PluginLog.error( "payPal.config()", ex );
+		}
+		finally
+		{
+			// Record how long the call took
+			Metrics.configDuration.recordSince( startNanos );
 		}
 		
 		return 0;
 	}
+
+	// Called on the UI thread once the PayPal service is up, makes the plugin ready and starts the waiting requests
+	private static void onServiceStarted( PluginContext context, CoronaActivity activity )
+	{
+		if ( context.getState() == PluginContext.STATE_CONFIGURED && context.advanceState( PluginContext.STATE_READY ) )
+		{
+			PaymentRequest.startWaiting( context, activity );
+		}
+	}
 }
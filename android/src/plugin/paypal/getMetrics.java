@@ -0,0 +1,70 @@
+//
+//  getMetrics.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+/**
+ * Implements the getMetrics() function in Lua.
+ * <p>
+ * Used for reading the plugin's counters and timings.
+ */
+public class getMetrics implements com.naef.jnlua.NamedJavaFunction 
+{
+	/**
+	 * Gets the name of the Lua function as it would appear in the Lua script.
+	 * @return Returns the name of the custom Lua function.
+	 */
+	@Override
+	public String getName()
+	{
+		return "getMetrics";
+	}
+
+	/**
+	 * This method is called when the Lua function is called.
+	 * <p>
+	 * Warning! This method is not called on the main UI thread.
+	 * @param luaState Reference to the Lua state.
+	 *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+	 * @return Returns the number of values to be returned by the Lua function.
+	 *         <p>
+	 *         Returns 1, the metrics table.
+	 */
+	@Override
+	public int invoke( LuaState luaState ) 
+	{
+		// Snapshot the metrics, without locking out the threads recording them
+		Metrics.push( luaState );
+		return 1;
+	}
+}
@@ -33,6 +33,9 @@ package plugin.paypal;
 // Android Imports
 import android.content.Context;
 
+// Java Imports
+import java.util.ArrayList;
+
 // JNLua imports
 import com.naef.jnlua.LuaState;
 import com.naef.jnlua.LuaType;
@@ -81,60 +84,6 @@ public class init implements com.naef.jnlua.NamedJavaFunction
 		return "init";
 	}
 
-	// Init callback Event task
-	private static class initCallBackListenerTask implements CoronaRuntimeTask 
-	{
-		private int fLuaListenerRegistryId;
-		private String fStatus = null;
-
-		public initCallBackListenerTask( int luaListenerRegistryId, String status ) 
-		{
-			fLuaListenerRegistryId = luaListenerRegistryId;
-			fStatus = status;
-		}
-
-		@Override
-		public void executeUsing( CoronaRuntime runtime )
-		{
-			try 
-			{
-				// Fetch the Corona runtime's Lua state.
-				final LuaState L = runtime.getLuaState();
-
-				// Dispatch the lua callback
-				if ( CoronaLua.REFNIL != fLuaListenerRegistryId ) 
-				{
-					// Setup the event
-					CoronaLua.newEvent( L, "license" );
-
-					// Event type
-					L.pushString( "check" );
-					L.setField( -2, "type" );
-
-					// Status
-					L.pushString( fStatus );
-					L.setField( -2, "status" );
-
-					// Dispatch the event
-					CoronaLua.dispatchEvent( L, fLuaListenerRegistryId, 0 );
-
-					// Free native reference to the listener
-					CoronaLua.deleteRef( L, fLuaListenerRegistryId );
-
-					// Null the reference
-					fLuaListenerRegistryId = 0;
-				}
-			}
-			catch ( Exception ex ) 
-			{
-				ex.printStackTrace();
-			}
-		}
-	}
-
-	// Our lua callback listener
-	private int listenerRef;
-
 	/**
 	 * This method is called when the Lua function is called.
 	 * <p>
@@ -146,35 +95,56 @@ public class init implements com.naef.jnlua.NamedJavaFunction
 	@Override
 	public int invoke( LuaState luaState ) 
 	{
+		// When the call started
+		long startNanos = System.nanoTime();
+
 		try
 		{
-			// Get the corona application context
-			Context coronaApplication = CoronaEnvironment.getApplicationContext();
+			// Decode the options table in a single pass
+			LuaOptionsReader reader = new LuaOptionsReader( luaState, "payPal.init()" );
+			InitOptions options = new InitOptions();
 
 			// If an options table has been passed
-			if ( luaState.isTable( -1 ) )
-			{				
-				// Get the listener field
-				luaState.getField( -1, "listener" );
-				if ( CoronaLua.isListener( luaState, -1, "payPal" ) ) 
-				{
-					// Assign the callback listener to a new lua ref
-					listenerRef = CoronaLua.newRef( luaState, -1 );
-				}
-				else
-				{
-					// Assign the listener to a nil ref
-					listenerRef = CoronaLua.REFNIL;
-				}
-				luaState.pop( 1 );
+			if ( reader.read( -1, options ) )
+			{
+				// Report anything unknown or of the wrong type
+				reader.printErrors();
 
 				// Pop the options table
 				luaState.pop( 1 );
+				reader.countCalls( 1 );
 			}
 			// No options table passed in
 			else
 			{
-				System.out.println( "Error: payPal.init(), options table expected, got " + luaState.typeName( -1 ) );
+				PluginLog.error( "payPal.init(), options table expected, got {}", luaState.typeName( -1 ) );
+				reader.countCalls( 1 );
+			}
+
+			// Record the number of JNI calls made
+			JniCallCounter.record( JniCallCounter.INIT, reader.getCallCount() );
+
+			// Assign the callback listener
+			int listenerRef = options.listenerRef;
+			if ( options.batch ) LuaRefManager.setBatched( luaState, listenerRef );
+
+			// Turn tracing on or off
+			Tracer.setEnabled( options.trace );
+
+			// Set the log level
+			if ( options.logLevel != null && PluginLog.setLevel( options.logLevel ) == false )
+			{
+				PluginLog.error( "payPal.init(), logLevel must be \"debug\", \"info\", \"warn\", \"error\" or \"none\", got \"{}\"", options.logLevel );
+			}
+
+			// Forward log messages to Lua, or stop forwarding them
+			if ( CoronaLua.REFNIL != options.logListenerRef )
+			{
+				PluginLog.setSink( luaState, options.logListenerRef );
+			}
+			else
+			{
+				PluginLog.setSink( luaState, CoronaLua.REFNIL );
 			}
 
 			// Corona Activity
@@ -184,35 +154,71 @@ public class init implements com.naef.jnlua.NamedJavaFunction
 				coronaActivity = CoronaEnvironment.getCoronaActivity();
 			}
 
-			// Corona runtime task dispatcher
-			final CoronaRuntimeTaskDispatcher dispatcher = new CoronaRuntimeTaskDispatcher( luaState );
-
-			// Create a new runnable object to invoke our activity
-			Runnable runnableActivity = new Runnable()
+			// If the corona activity is valid
+			if ( coronaActivity != null )
 			{
-				public void run()
+				// We have called init
+				PluginContext context = PluginContext.get( luaState );
+				context.setActivity( coronaActivity );
+				context.advanceState( PluginContext.STATE_INITIALIZING );
+				paypal.initNanos = System.nanoTime();
+
+				// Corona runtime task dispatcher
+				CoronaRuntimeTaskDispatcher dispatcher = context.getDispatcher();
+
+				// The generation of the listener reference, kept with it by every event sent to it
+				int listenerGeneration = LuaRefManager.getGeneration( luaState, listenerRef );
+
+				// Replay confirmations a previous runtime never dispatched, if the listener asked for them.
+				// Otherwise they stay in the journal, a listener that doesn't know the event would drop them
+				if ( options.replay && CoronaLua.REFNIL == listenerRef )
+				{
+					PluginLog.error( "payPal.init(), replay needs a listener" );
+				}
+				else if ( options.replay )
 				{
-					// Create the task (for backwards compat)
-					initCallBackListenerTask task = new initCallBackListenerTask( listenerRef, "valid" );
+					ArrayList<PayPalEventTask> replay = PaymentJournal.takeReplay( luaState );
+					if ( replay != null )
+					{
+						dispatcher.send( PayPalEventTask.obtain( PayPalEventTask.KIND_REPLAY, PayPalEventTask.STATE_NONE, listenerRef, listenerGeneration )
+							.setReplay( replay )
+							.keepListener() );
+					}
+				}
 
-					// Send the task to the Corona runtime asynchronously.
-					dispatcher.send( task );
+				// Create the task (for backwards compat)
+				PayPalEventTask task = PayPalEventTask.obtain( PayPalEventTask.KIND_LICENSE, PayPalEventTask.STATE_VALID, listenerRef, listenerGeneration );
+
+				// Keep the listener for the ready event
+				if ( options.prewarm )
+				{
+					task.keepListener();
 				}
-			};
 
-			// Run the activity on the uiThread
-			if ( coronaActivity != null )
+				// Send the task to the Corona runtime asynchronously.
+				dispatcher.send( task );
+
+				// Warm up the PayPal SDK in the background
+				if ( options.prewarm )
+				{
+					Prewarm.start( dispatcher, listenerRef, listenerGeneration );
+				}
+			}
+			// No event will be sent, so nothing will use the listener
+			else
 			{
-				// We have called init
-				paypal.hasCalledInit = true;
-				// Run the activity
-				coronaActivity.runOnUiThread( runnableActivity );
+				LuaRefManager.release( luaState, listenerRef );
 			}
 		}
 		catch( Exception ex )
 		{
 			// An exception will occur if given an invalid argument or no argument. Print the error.
-			ex.printStackTrace();
+			PluginLog.error( "payPal.init()", ex );
+		}
+		finally
+		{
+			// Record how long the call took
+			Metrics.initDuration.recordSince( startNanos );
 		}
 		
 		return 0;
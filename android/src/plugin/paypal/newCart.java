@@ -0,0 +1,91 @@
+//
+//  newCart.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+/**
+ * Implements the newCart() function in Lua.
+ * <p>
+ * Used for creating a cart that can be passed to show( "payment" ) in place of a single amount.
+ */
+public class newCart implements com.naef.jnlua.NamedJavaFunction 
+{
+	/**
+	 * Gets the name of the Lua function as it would appear in the Lua script.
+	 * @return Returns the name of the custom Lua function.
+	 */
+	@Override
+	public String getName()
+	{
+		return "newCart";
+	}
+
+	/**
+	 * This method is called when the Lua function is called.
+	 * <p>
+	 * Warning! This method is not called on the main UI thread.
+	 * @param luaState Reference to the Lua state.
+	 *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+	 * @return Returns the number of values to be returned by the Lua function.
+	 *         <p>
+	 *         Returns 1, the cart, or 2, nil and an error message, if the currency is not usable.
+	 */
+	@Override
+	public int invoke( LuaState luaState ) 
+	{
+		// The currency of the cart, optional
+		String currencyCode = luaState.isNoneOrNil( 1 ) ? null : luaState.checkString( 1 );
+
+		// Amounts have two decimal places unless the currency says otherwise
+		int scale = 2;
+		if ( currencyCode != null )
+		{
+			String error = null;
+			if ( CurrencyTable.isKnown( currencyCode ) == false ) error = "currencyCode `" + currencyCode + "` is not an ISO 4217 currency code";
+			else if ( CurrencyTable.isSupported( currencyCode ) == false ) error = "currencyCode `" + currencyCode + "` is not supported by PayPal";
+
+			// Return nil and the reason
+			if ( error != null )
+			{
+				luaState.pushNil();
+				luaState.pushString( error );
+				return 2;
+			}
+			scale = CurrencyTable.getMinorUnits( currencyCode );
+		}
+
+		// Create the cart and its Lua table
+		new Cart( currencyCode, scale ).push( luaState );
+		return 1;
+	}
+}
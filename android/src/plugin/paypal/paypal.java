@@ -30,10 +30,17 @@ THE SOFTWARE.
 // Package name
 package plugin.paypal;
 
+// Java Imports
+import java.util.concurrent.atomic.AtomicLong;
+
 // Out Paypal Class
 public class paypal
 {
-	// State variables
-	public static boolean hasCalledInit = false;
-	public static boolean hasCalledConfig = false;
+	// When init() was last called
+	public static volatile long initNanos = 0;
+	// Time from init() to the first payment sheet being shown, 0 until it has been shown
+	public static final AtomicLong firstPaymentSheetNanos = new AtomicLong();
+
+	// Number of config() calls that did not need to restart the PayPal service
+	public static final AtomicLong serviceStartsAvoided = new AtomicLong();
 }
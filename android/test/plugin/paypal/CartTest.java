@@ -0,0 +1,170 @@
+//
+//  CartTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the totals kept by {@link Cart}.
+ */
+public class CartTest
+{
+	@Test
+	public void keepsRunningTotals()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 2, 999, 100 ) );
+		assertNull( cart.add( "shield", 1, 1500, 0 ) );
+		assertNull( cart.setShipping( 250 ) );
+
+		assertEquals( 2 * 999 + 1500, cart.getSubtotal() );
+		assertEquals( 200, cart.getTax() );
+		assertEquals( 250, cart.getShipping() );
+		assertEquals( 3, cart.getQuantity() );
+		assertEquals( "2 x sword, shield", cart.describe() );
+	}
+
+	@Test
+	public void repricesALineWhenItIsAddedAgain()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 2, 999, 100 ) );
+
+		// The new price applies to the units already in the cart
+		assertNull( cart.add( "sword", 1, 800, 50 ) );
+		assertEquals( 3 * 800, cart.getSubtotal() );
+		assertEquals( 3 * 50, cart.getTax() );
+		assertEquals( 3, cart.getQuantity() );
+
+		// A quantity of zero only changes the price
+		assertNull( cart.add( "sword", 0, 700, 0 ) );
+		assertEquals( 3 * 700, cart.getSubtotal() );
+		assertEquals( 0, cart.getTax() );
+		assertEquals( 3, cart.getQuantity() );
+	}
+
+	@Test
+	public void removesUnitsAndLines()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 3, 999, 100 ) );
+		assertNull( cart.add( "shield", 1, 1500, 0 ) );
+
+		assertTrue( cart.remove( "sword", 1 ) );
+		assertEquals( 2 * 999 + 1500, cart.getSubtotal() );
+		assertEquals( 200, cart.getTax() );
+		assertEquals( 3, cart.getQuantity() );
+
+		// -1 removes the whole line, as does removing more than there is
+		assertTrue( cart.remove( "sword", -1 ) );
+		assertTrue( cart.remove( "shield", 10 ) );
+		assertFalse( cart.remove( "shield", 1 ) );
+		assertEquals( 0, cart.getSubtotal() );
+		assertEquals( 0, cart.getTax() );
+		assertEquals( 0, cart.getQuantity() );
+		assertEquals( "", cart.describe() );
+	}
+
+	@Test
+	public void rejectsBadLinesWithoutChangingTheCart()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 1, 999, 0 ) );
+
+		assertNotNull( cart.add( "shield", -1, 100, 0 ) );
+		assertNotNull( cart.add( "shield", 1, -100, 0 ) );
+		assertNotNull( cart.add( "shield", 1, 100, -1 ) );
+		assertNotNull( cart.add( "shield", 0, 100, 0 ) );
+		assertNotNull( cart.setShipping( -1 ) );
+
+		assertEquals( 999, cart.getSubtotal() );
+		assertEquals( 1, cart.getQuantity() );
+		assertEquals( "sword", cart.describe() );
+	}
+
+	@Test
+	public void rejectsTotalsThatOverflow()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 2, Long.MAX_VALUE / 4, 0 ) );
+
+		// The subtotal, the tax and the shipping must fit together
+		assertNotNull( cart.add( "sword", 1, Long.MAX_VALUE / 2, 0 ) );
+		assertNotNull( cart.add( "shield", 1, Long.MAX_VALUE / 4, Long.MAX_VALUE / 2 ) );
+		assertNotNull( cart.setShipping( Long.MAX_VALUE ) );
+		assertEquals( 2 * ( Long.MAX_VALUE / 4 ), cart.getSubtotal() );
+		assertEquals( 0, cart.getShipping() );
+		assertEquals( 2, cart.getQuantity() );
+	}
+
+	@Test
+	public void rejectsQuantitiesThatOverflow()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", Integer.MAX_VALUE - 1, 0, 0 ) );
+
+		// Too many units of one line, and too many in the cart
+		assertNotNull( cart.add( "sword", 2, 0, 0 ) );
+		assertNotNull( cart.add( "shield", 2, 0, 0 ) );
+		assertNull( cart.add( "shield", 1, 0, 0 ) );
+		assertEquals( Integer.MAX_VALUE, cart.getQuantity() );
+	}
+
+	@Test
+	public void clearsEverything()
+	{
+		Cart cart = new Cart( "USD", 2 );
+		assertNull( cart.add( "sword", 2, 999, 100 ) );
+		assertNull( cart.setShipping( 250 ) );
+		cart.clear();
+
+		assertEquals( 0, cart.getSubtotal() );
+		assertEquals( 0, cart.getTax() );
+		assertEquals( 0, cart.getShipping() );
+		assertEquals( 0, cart.getQuantity() );
+		assertEquals( "", cart.describe() );
+	}
+
+	@Test
+	public void isRegisteredById()
+	{
+		Cart cart = new Cart( null, 2 );
+		assertSame( cart, Cart.get( cart.getId() ) );
+		assertNull( Cart.get( -1 ) );
+	}
+}
@@ -0,0 +1,85 @@
+//
+//  CurrencyTableTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CurrencyTable}.
+ */
+public class CurrencyTableTest
+{
+	@Test
+	public void knowsPayPalCurrencies()
+	{
+		assertTrue( CurrencyTable.isKnown( "USD" ) );
+		assertTrue( CurrencyTable.isSupported( "USD" ) );
+		assertEquals( 2, CurrencyTable.getMinorUnits( "USD" ) );
+		assertTrue( CurrencyTable.isSupported( "AUD" ) );
+		assertTrue( CurrencyTable.isSupported( "GBP" ) );
+	}
+
+	@Test
+	public void usesPayPalDecimalsForWholeAmountCurrencies()
+	{
+		assertEquals( 0, CurrencyTable.getMinorUnits( "JPY" ) );
+
+		// Two ISO minor units, but PayPal only takes whole amounts
+		assertEquals( 0, CurrencyTable.getMinorUnits( "HUF" ) );
+		assertEquals( 0, CurrencyTable.getMinorUnits( "TWD" ) );
+	}
+
+	@Test
+	public void knowsOtherIsoCurrenciesWithoutSupportingThem()
+	{
+		assertTrue( CurrencyTable.isKnown( "BHD" ) );
+		assertFalse( CurrencyTable.isSupported( "BHD" ) );
+		assertEquals( 3, CurrencyTable.getMinorUnits( "BHD" ) );
+		assertTrue( CurrencyTable.isKnown( "ZMW" ) );
+		assertFalse( CurrencyTable.isSupported( "ZMW" ) );
+	}
+
+	@Test
+	public void rejectsUnknownCodes()
+	{
+		String[] codes = { "XYZ", "usd", "US", "USDD", "", "U$D", null };
+		for ( int i = 0; i < codes.length; i++ )
+		{
+			assertFalse( codes[i], CurrencyTable.isKnown( codes[i] ) );
+			assertFalse( codes[i], CurrencyTable.isSupported( codes[i] ) );
+			assertEquals( codes[i], -1, CurrencyTable.getMinorUnits( codes[i] ) );
+		}
+	}
+}
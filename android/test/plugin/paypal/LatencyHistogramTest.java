@@ -0,0 +1,121 @@
+//
+//  LatencyHistogramTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest
+{
+	// Nanoseconds in a microsecond
+	private static final long US = 1000;
+
+	@Test
+	public void isEmptyToStartWith()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getMeanMicros() );
+		assertEquals( 0, histogram.getMaxMicros() );
+		assertEquals( 0, histogram.getPercentileMicros( 50 ) );
+	}
+
+	@Test
+	public void tracksCountMeanAndMax()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( 10 * US );
+		histogram.record( 20 * US );
+		histogram.record( 90 * US );
+
+		assertEquals( 3, histogram.getCount() );
+		assertEquals( 40, histogram.getMeanMicros() );
+		assertEquals( 90, histogram.getMaxMicros() );
+	}
+
+	@Test
+	public void reportsPercentilesAsBucketBounds()
+	{
+		// 90 samples of 40us, 9 of 400us and 1 of 4ms
+		LatencyHistogram histogram = new LatencyHistogram();
+		for ( int i = 0; i < 90; i++ )
+		{
+			histogram.record( 40 * US );
+		}
+		for ( int i = 0; i < 9; i++ )
+		{
+			histogram.record( 400 * US );
+		}
+		histogram.record( 4000 * US );
+
+		assertEquals( 50, histogram.getPercentileMicros( 50 ) );
+		assertEquals( 50, histogram.getPercentileMicros( 90 ) );
+		assertEquals( 500, histogram.getPercentileMicros( 91 ) );
+		assertEquals( 500, histogram.getPercentileMicros( 99 ) );
+
+		// Never above the largest sample
+		assertEquals( 4000, histogram.getPercentileMicros( 100 ) );
+	}
+
+	@Test
+	public void capsPercentilesAtTheLargestSample()
+	{
+		// Both in the 1ms to 2.5ms bucket
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( 1200 * US );
+		histogram.record( 1300 * US );
+		assertEquals( 1300, histogram.getPercentileMicros( 50 ) );
+	}
+
+	@Test
+	public void handlesSamplesPastTheLastBucket()
+	{
+		// Ten minutes, above the five minute bound
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( 600000000L * US );
+		assertEquals( 600000000L, histogram.getPercentileMicros( 50 ) );
+		assertEquals( 600000000L, histogram.getMaxMicros() );
+	}
+
+	@Test
+	public void clampsNegativeSamplesToZero()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( -5 * US );
+		assertEquals( 1, histogram.getCount() );
+		assertEquals( 0, histogram.getMaxMicros() );
+		assertEquals( 0, histogram.getPercentileMicros( 99 ) );
+	}
+}
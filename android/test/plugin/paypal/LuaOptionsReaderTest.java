@@ -0,0 +1,211 @@
+//
+//  LuaOptionsReaderTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java imports
+import java.io.UnsupportedEncodingException;
+
+// JNLua imports
+import com.naef.jnlua.LuaType;
+
+// JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the packed table decoding of {@link LuaOptionsReader}.
+ * <p>
+ * The packed strings are written by hand in the format of the packer chunk: "<length>:<key>" followed by
+ * "s<length>:<string>", "n<length>:<number>", "b1", "b0", "t...e" or "o<length>:<type name>", lengths in bytes.
+ */
+public class LuaOptionsReaderTest
+{
+	// Options that accept every key used by the tests
+	private static class TestOptions extends LuaOptions
+	{
+		String fText = null;
+		double fNumber = 0;
+		boolean fFlag = false;
+		TestOptions fNested = null;
+
+		@Override
+		protected boolean onField( String key, LuaOptionsReader reader )
+		{
+			if ( key.equals( "text" ) || key.equals( "shortDescription" ) || key.equals( "\u540d\u524d" ) )
+			{
+				fText = reader.readString();
+			}
+			else if ( key.equals( "number" ) )
+			{
+				fNumber = reader.readNumber( -1 );
+			}
+			else if ( key.equals( "flag" ) )
+			{
+				fFlag = reader.readBoolean( false );
+			}
+			else if ( key.equals( "nested" ) )
+			{
+				fNested = new TestOptions();
+				reader.readTable( fNested );
+			}
+			else if ( key.equals( "skipped" ) )
+			{
+				// Known, but its table is left for the reader to skip
+			}
+			else
+			{
+				return false;
+			}
+			return true;
+		}
+	}
+
+	@Test
+	public void decodesScalars()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "4:texts5:hello6:numbern4:12.54:flagb1" ), options );
+
+		assertEquals( "hello", options.fText );
+		assertEquals( 12.5, options.fNumber, 0 );
+		assertTrue( options.fFlag );
+		assertFalse( reader.hasErrors() );
+	}
+
+	@Test
+	public void decodesStringsByByteLength()
+	{
+		// The accented e takes two bytes, the string after it only lines up if lengths are counted in bytes
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "16:shortDescriptions5:Caf\u00e94:flagb1" ), options );
+
+		assertEquals( "Caf\u00e9", options.fText );
+		assertTrue( options.fFlag );
+		assertFalse( reader.hasErrors() );
+	}
+
+	@Test
+	public void decodesMultiByteKeys()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "6:\u540d\u524ds12:\u30da\u30a4\u30d1\u30eb6:numbern1:7" ), options );
+
+		assertEquals( "\u30da\u30a4\u30d1\u30eb", options.fText );
+		assertEquals( 7, options.fNumber, 0 );
+		assertFalse( reader.hasErrors() );
+	}
+
+	@Test
+	public void decodesNestedTables()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "6:nestedt4:texts6:inside4:flagb1e4:texts7:outside" ), options );
+
+		assertEquals( "outside", options.fText );
+		assertEquals( "inside", options.fNested.fText );
+		assertTrue( options.fNested.fFlag );
+		assertFalse( options.fFlag );
+		assertFalse( reader.hasErrors() );
+	}
+
+	@Test
+	public void skipsTablesTheOptionsDidNotRead()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "7:skippedt1:at1:bs4:\u20ac1e1:cb0e4:texts5:after" ), options );
+
+		assertEquals( "after", options.fText );
+		assertFalse( reader.hasErrors() );
+	}
+
+	@Test
+	public void reportsUnknownKeysAndWrongTypes()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( pack( "7:unknownb14:flags3:yes6:nestedt6:numbero8:functione" ), options );
+
+		assertTrue( reader.hasErrors() );
+		assertFalse( options.fFlag );
+		assertEquals( -1, options.fNested.fNumber, 0 );
+	}
+
+	@Test
+	public void reportsTheTypeOfUnpackedValues()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		final LuaType[] type = new LuaType[1];
+		reader.decode( pack( "4:texto8:function" ), new LuaOptions()
+		{
+			@Override
+			protected boolean onField( String key, LuaOptionsReader reader )
+			{
+				type[0] = reader.getValueType();
+				return reader.readString() != null;
+			}
+		});
+
+		assertNull( type[0] );
+		assertTrue( reader.hasErrors() );
+	}
+
+	@Test
+	public void decodesAnEmptyTable()
+	{
+		LuaOptionsReader reader = new LuaOptionsReader( null, "test()" );
+		TestOptions options = new TestOptions();
+		reader.decode( new byte[0], options );
+
+		assertNull( options.fText );
+		assertFalse( reader.hasErrors() );
+	}
+
+	// Encodes a packed table the way Lua hands it over
+	private static byte[] pack( String packed )
+	{
+		try
+		{
+			return packed.getBytes( "UTF-8" );
+		}
+		catch ( UnsupportedEncodingException ex )
+		{
+			throw new RuntimeException( ex );
+		}
+	}
+}
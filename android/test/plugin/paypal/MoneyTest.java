@@ -0,0 +1,144 @@
+//
+//  MoneyTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java imports
+import java.math.BigDecimal;
+
+// JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Money}.
+ */
+public class MoneyTest
+{
+	@Test
+	public void parsesPlainDecimals()
+	{
+		assertEquals( 999, Money.parse( "9.99", 2 ) );
+		assertEquals( 900, Money.parse( "9", 2 ) );
+		assertEquals( 990, Money.parse( "9.9", 2 ) );
+		assertEquals( 50, Money.parse( ".5", 2 ) );
+		assertEquals( 9, Money.parse( "9.", 0 ) );
+		assertEquals( -1250, Money.parse( "-12.50", 2 ) );
+		assertEquals( 1500, Money.parse( "1500", 0 ) );
+		assertEquals( 1234, Money.parse( "1.234", 3 ) );
+	}
+
+	@Test
+	public void allowsTrailingZerosPastTheScale()
+	{
+		assertEquals( 999, Money.parse( "9.9900", 2 ) );
+		assertEquals( 12, Money.parse( "12.000", 0 ) );
+	}
+
+	@Test
+	public void rejectsMalformedText()
+	{
+		assertEquals( Money.INVALID, Money.parse( null, 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "-", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( ".", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "1.2.3", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "+1", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( " 1", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "1e3", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "--1", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "1", -1 ) );
+	}
+
+	@Test
+	public void rejectsDigitsPastTheScale()
+	{
+		assertEquals( Money.INVALID, Money.parse( "9.999", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "100.5", 0 ) );
+	}
+
+	@Test
+	public void parsesUpToTheLimitsOfALong()
+	{
+		assertEquals( Long.MAX_VALUE, Money.parse( "9223372036854775807", 0 ) );
+		assertEquals( Long.MIN_VALUE + 1, Money.parse( "-9223372036854775807", 0 ) );
+		assertEquals( Long.MAX_VALUE, Money.parse( "92233720368547758.07", 2 ) );
+	}
+
+	@Test
+	public void rejectsAmountsThatOverflow()
+	{
+		// Long.MIN_VALUE itself is INVALID
+		assertEquals( Money.INVALID, Money.parse( "-9223372036854775808", 0 ) );
+		assertEquals( Money.INVALID, Money.parse( "9223372036854775808", 0 ) );
+		assertEquals( Money.INVALID, Money.parse( "99999999999999999999", 0 ) );
+
+		// Overflow that only happens while padding out to the scale
+		assertEquals( Money.INVALID, Money.parse( "92233720368547758.08", 2 ) );
+		assertEquals( Money.INVALID, Money.parse( "92233720368547759", 2 ) );
+	}
+
+	@Test
+	public void addsAndSubtractsWithOverflowChecks()
+	{
+		assertEquals( 300, Money.add( 100, 200 ) );
+		assertEquals( -100, Money.subtract( 100, 200 ) );
+		assertEquals( Money.INVALID, Money.add( Long.MAX_VALUE, 1 ) );
+		assertEquals( Money.INVALID, Money.add( Long.MIN_VALUE + 1, -1 ) );
+		assertEquals( Money.INVALID, Money.subtract( Long.MIN_VALUE + 1, 1 ) );
+		assertEquals( Money.INVALID, Money.subtract( 0, Long.MIN_VALUE ) );
+
+		// INVALID is never treated as an amount
+		assertEquals( Money.INVALID, Money.add( Money.INVALID, 0 ) );
+		assertEquals( Money.INVALID, Money.add( 0, Money.INVALID ) );
+		assertEquals( Money.INVALID, Money.subtract( Money.INVALID, 0 ) );
+	}
+
+	@Test
+	public void multipliesWithOverflowChecks()
+	{
+		assertEquals( 2997, Money.multiply( 999, 3 ) );
+		assertEquals( 0, Money.multiply( 999, 0 ) );
+		assertEquals( Money.INVALID, Money.multiply( Long.MAX_VALUE / 2 + 1, 2 ) );
+		assertEquals( Money.INVALID, Money.multiply( Money.INVALID, 1 ) );
+	}
+
+	@Test
+	public void comparesAndConverts()
+	{
+		assertTrue( Money.compare( 1, 2 ) < 0 );
+		assertTrue( Money.compare( 2, 1 ) > 0 );
+		assertEquals( 0, Money.compare( 5, 5 ) );
+		assertEquals( new BigDecimal( "9.99" ), Money.toBigDecimal( 999, 2 ) );
+		assertEquals( new BigDecimal( "-0.05" ), Money.toBigDecimal( -5, 2 ) );
+		assertEquals( new BigDecimal( "1500" ), Money.toBigDecimal( 1500, 0 ) );
+	}
+}
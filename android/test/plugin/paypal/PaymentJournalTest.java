@@ -0,0 +1,295 @@
+//
+//  PaymentJournalTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java imports
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+// JUnit imports
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for reading and compacting the {@link PaymentJournal} file.
+ * <p>
+ * Journal files are written by hand here, so the record format is checked independently of the writer:
+ * a magic number, then records of type, id, payload length, payload and a CRC32 of all four, big endian.
+ */
+public class PaymentJournalTest
+{
+	private static final int MAGIC = 0x50504A31;
+	private static final int RECORD_ENTRY = 1;
+	private static final int RECORD_ACK = 2;
+
+	// Size of a freshly compacted journal
+	private static final long COMPACTED_LENGTH = 64 * 1024;
+
+	private File fFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		fFile = File.createTempFile( "plugin.paypal", ".journal" );
+		fFile.delete();
+		PaymentJournal.close();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException
+	{
+		// Let the journal writer finish with the file before it goes
+		PaymentJournal.awaitWriter();
+		PaymentJournal.close();
+		fFile.delete();
+		new File( fFile.getPath() + ".tmp" ).delete();
+	}
+
+	@Test
+	public void startsEmptyWithoutAFile() throws InterruptedException
+	{
+		open();
+		assertEquals( 0, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void replaysEntriesThatWereNeverAcknowledged() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"requestID\":1}" );
+		journal.entry( 2, "{\"requestID\":2}" );
+		journal.entry( 3, "{\"requestID\":3}" );
+		journal.ack( 2 );
+		journal.writeTo( fFile );
+
+		open();
+		assertEquals( 2, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void replayWaitsForTheJournalToBeRead() throws IOException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"kind\":1,\"state\":1,\"requestID\":1}" );
+		journal.writeTo( fFile );
+
+		// The file is read on the journal writer, straight after opening it may not have been yet
+		PaymentJournal.open( fFile );
+		ArrayList<PayPalEventTask> replay = PaymentJournal.takeReplay( null );
+		assertEquals( 1, replay.size() );
+	}
+
+	@Test
+	public void keepsReplayedEntriesUntilTheyAreAcknowledged() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"kind\":1,\"state\":1,\"requestID\":1}" );
+		journal.entry( 2, "{\"kind\":2,\"state\":1,\"requestID\":2}" );
+		journal.writeTo( fFile );
+		open();
+
+		// Handing the entries to a replay listener removes nothing
+		ArrayList<PayPalEventTask> replay = PaymentJournal.takeReplay( null );
+		assertEquals( 2, replay.size() );
+		assertEquals( 1, replay.get( 0 ).fJournalId );
+		assertEquals( PayPalEventTask.KIND_PAYMENT, replay.get( 0 ).fKind );
+		assertEquals( 2, replay.get( 1 ).fRequestID );
+		PaymentJournal.awaitWriter();
+		assertEquals( 2, PaymentJournal.getPendingCount() );
+
+		// Only the acknowledged entry goes, in memory and on disk
+		PaymentJournal.acknowledge( 1 );
+		PaymentJournal.awaitWriter();
+		assertEquals( 1, PaymentJournal.getPendingCount() );
+		PaymentJournal.close();
+		open();
+		assertEquals( 1, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void stopsAtARecordWithABadChecksum() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"requestID\":1}" );
+		journal.entry( 2, "{\"requestID\":2}" );
+		byte[] bytes = journal.toByteArray();
+
+		// Flip a bit in the second entry's payload
+		bytes[bytes.length - 6] ^= 1;
+		write( fFile, bytes );
+
+		open();
+		assertEquals( 1, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void stopsAtARecordThatWasCutOff() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"requestID\":1}" );
+		journal.entry( 2, "{\"requestID\":2}" );
+		byte[] bytes = journal.toByteArray();
+
+		// Lose the end of the second entry, as a crash mid write would
+		byte[] cut = new byte[bytes.length - 3];
+		System.arraycopy( bytes, 0, cut, 0, cut.length );
+		write( fFile, cut );
+
+		open();
+		assertEquals( 1, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void stopsAtTheZeroFilledEndOfTheMapping() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"requestID\":1}" );
+		journal.padTo( 4096 );
+		journal.writeTo( fFile );
+
+		open();
+		assertEquals( 1, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void ignoresAFileThatIsNotAJournal() throws IOException, InterruptedException
+	{
+		write( fFile, "not a journal".getBytes( "UTF-8" ) );
+
+		open();
+		assertEquals( 0, PaymentJournal.getPendingCount() );
+	}
+
+	@Test
+	public void keepsPendingEntriesThroughCompaction() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal();
+		journal.entry( 1, "{\"requestID\":1}" );
+		journal.entry( 2, "{\"requestID\":2}" );
+		journal.ack( 1 );
+		journal.entry( 3, "{\"requestID\":3}" );
+		journal.writeTo( fFile );
+
+		// Opening rewrites the file with just the pending entries
+		open();
+		assertEquals( COMPACTED_LENGTH, fFile.length() );
+
+		// Which a new process reads back
+		PaymentJournal.close();
+		open();
+		assertEquals( 2, PaymentJournal.getPendingCount() );
+	}
+
+	// Opens the test journal and waits for the journal writer to read it
+	private void open() throws InterruptedException
+	{
+		PaymentJournal.open( fFile );
+		PaymentJournal.awaitWriter();
+	}
+
+	// Writes bytes to a file
+	private static void write( File file, byte[] bytes ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( file );
+		try
+		{
+			out.write( bytes );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	// Builds a journal file in memory
+	private static class Journal
+	{
+		private final ByteArrayOutputStream fBytes = new ByteArrayOutputStream();
+		private final DataOutputStream fOut = new DataOutputStream( fBytes );
+
+		Journal() throws IOException
+		{
+			fOut.writeInt( MAGIC );
+		}
+
+		void entry( int id, String json ) throws IOException
+		{
+			record( RECORD_ENTRY, id, json.getBytes( "UTF-8" ) );
+		}
+
+		void ack( int id ) throws IOException
+		{
+			record( RECORD_ACK, id, new byte[0] );
+		}
+
+		void padTo( int length ) throws IOException
+		{
+			while ( fBytes.size() < length )
+			{
+				fOut.writeByte( 0 );
+			}
+		}
+
+		byte[] toByteArray()
+		{
+			return fBytes.toByteArray();
+		}
+
+		void writeTo( File file ) throws IOException
+		{
+			write( file, toByteArray() );
+		}
+
+		private void record( int type, int id, byte[] payload ) throws IOException
+		{
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( header );
+			out.writeInt( type );
+			out.writeInt( id );
+			out.writeInt( payload.length );
+
+			CRC32 crc = new CRC32();
+			crc.update( header.toByteArray() );
+			crc.update( payload );
+
+			fOut.write( header.toByteArray() );
+			fOut.write( payload );
+			fOut.writeInt( (int)crc.getValue() );
+		}
+	}
+}
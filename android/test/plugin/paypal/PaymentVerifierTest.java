@@ -0,0 +1,259 @@
+//
+//  PaymentVerifierTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona imports
+import com.ansca.corona.CoronaRuntimeTask;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc imports
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+// JUnit imports
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PaymentVerifier}, against a stand-in verification server on the loopback interface.
+ */
+public class PaymentVerifierTest
+{
+	// Longest a test waits for something that should happen
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private StubServer fServer;
+	private Events fEvents;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		fServer = new StubServer();
+		fEvents = new Events();
+		PaymentVerifier.configure( fServer.getURL(), 3, 5000 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		PaymentVerifier.configure( null, 0, 0 );
+		fServer.stop();
+	}
+
+	@Test
+	public void addsTheServersVerdictToTheEvent() throws Exception
+	{
+		fServer.answer( 200, "{\"results\":[{\"verified\":true}]}" );
+		PaymentVerifier.send( newPayment( 1 ), fEvents );
+
+		JSONObject request = fServer.nextRequest().getJSONArray( "confirmations" ).getJSONObject( 0 );
+		assertEquals( 1, request.getInt( "requestID" ) );
+		assertEquals( "payment", request.getString( "type" ) );
+		assertTrue( fEvents.next().fVerification.getBoolean( "verified" ) );
+	}
+
+	@Test
+	public void retriesServerErrors() throws Exception
+	{
+		fServer.answer( 503, "{}" );
+		fServer.answer( 200, "{\"results\":[{\"verified\":true}]}" );
+		PaymentVerifier.send( newPayment( 1 ), fEvents );
+
+		fServer.nextRequest();
+		fServer.nextRequest();
+		assertTrue( fEvents.next().fVerification.getBoolean( "verified" ) );
+	}
+
+	@Test
+	public void doesNotRetryAnswersThatAreNotJSON() throws Exception
+	{
+		fServer.answer( 200, "<html><body>Bad Gateway</body></html>" );
+		PaymentVerifier.send( newPayment( 1 ), fEvents );
+
+		fServer.nextRequest();
+		JSONObject verdict = fEvents.next().fVerification;
+		assertFalse( verdict.getBoolean( "verified" ) );
+		assertTrue( verdict.getString( "error" ), verdict.getString( "error" ).contains( "JSON" ) );
+		assertNull( fServer.pollRequest( 1000 ) );
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws Exception
+	{
+		fServer.answer( 400, "{}" );
+		PaymentVerifier.send( newPayment( 1 ), fEvents );
+
+		fServer.nextRequest();
+		assertFalse( fEvents.next().fVerification.getBoolean( "verified" ) );
+		assertNull( fServer.pollRequest( 1000 ) );
+	}
+
+	@Test
+	public void givesUpAfterTheLastAttempt() throws Exception
+	{
+		fServer.answer( 500, "{}" );
+		fServer.answer( 500, "{}" );
+		fServer.answer( 500, "{}" );
+		PaymentVerifier.send( newPayment( 1 ), fEvents );
+
+		fServer.nextRequest();
+		fServer.nextRequest();
+		fServer.nextRequest();
+		assertFalse( fEvents.next().fVerification.getBoolean( "verified" ) );
+		assertNull( fServer.pollRequest( 0 ) );
+	}
+
+	// A completed payment waiting for verification
+	private static PayPalEventTask newPayment( int requestID )
+	{
+		return PayPalEventTask.obtain( PayPalEventTask.KIND_PAYMENT, 0, 0, 0 )
+			.setRequestID( requestID )
+			.setResponse( "correlation", new JSONObject(), true );
+	}
+
+	// Collects the events sent to Lua
+	private static class Events extends CoronaRuntimeTaskDispatcher
+	{
+		private final LinkedBlockingQueue<PayPalEventTask> fTasks = new LinkedBlockingQueue<PayPalEventTask>();
+
+		Events()
+		{
+			super( (LuaState)null );
+		}
+
+		@Override
+		public void send( CoronaRuntimeTask task )
+		{
+			fTasks.add( (PayPalEventTask)task );
+		}
+
+		PayPalEventTask next() throws InterruptedException
+		{
+			PayPalEventTask task = fTasks.poll( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+			assertNotNull( "no event was sent", task );
+			return task;
+		}
+	}
+
+	// A server that records the requests and gives the queued answers in order, repeating the last one
+	private static class StubServer implements HttpHandler
+	{
+		private final HttpServer fHttpServer;
+		private final LinkedBlockingQueue<JSONObject> fRequests = new LinkedBlockingQueue<JSONObject>();
+		private final LinkedBlockingQueue<Object[]> fAnswers = new LinkedBlockingQueue<Object[]>();
+
+		StubServer() throws IOException
+		{
+			fHttpServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+			fHttpServer.createContext( "/verify", this );
+			fHttpServer.start();
+		}
+
+		String getURL()
+		{
+			return "http://127.0.0.1:" + fHttpServer.getAddress().getPort() + "/verify";
+		}
+
+		void answer( int status, String body )
+		{
+			fAnswers.add( new Object[] { status, body } );
+		}
+
+		JSONObject nextRequest() throws InterruptedException
+		{
+			JSONObject request = pollRequest( TIMEOUT_MILLIS );
+			assertNotNull( "no request reached the server", request );
+			return request;
+		}
+
+		JSONObject pollRequest( long timeoutMillis ) throws InterruptedException
+		{
+			return fRequests.poll( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+
+		void stop()
+		{
+			fHttpServer.stop( 0 );
+		}
+
+		@Override
+		public void handle( HttpExchange exchange ) throws IOException
+		{
+			try
+			{
+				fRequests.add( new JSONObject( read( exchange.getRequestBody() ) ) );
+			}
+			catch ( Exception ex )
+			{
+				throw new IOException( ex );
+			}
+
+			Object[] answer = fAnswers.size() > 1 ? fAnswers.poll() : fAnswers.peek();
+			byte[] body = ( (String)answer[1] ).getBytes( "UTF-8" );
+			exchange.sendResponseHeaders( (Integer)answer[0], body.length );
+			OutputStream out = exchange.getResponseBody();
+			out.write( body );
+			out.close();
+		}
+
+		private static String read( InputStream in ) throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ( ( count = in.read( buffer ) ) != -1 )
+			{
+				bytes.write( buffer, 0, count );
+			}
+			return bytes.toString( "UTF-8" );
+		}
+	}
+}
@@ -0,0 +1,300 @@
+//
+//  TokenExchangeTest.java
+//  PayPal Plugin
+//
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Gremlin Interactive Limited
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+// ----------------------------------------------------------------------------
+
+// Package name
+package plugin.paypal;
+
+// Java imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// JNLua imports
+import com.naef.jnlua.LuaState;
+
+// Corona imports
+import com.ansca.corona.CoronaRuntimeTask;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+
+// Java/Misc imports
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+// JUnit imports
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TokenExchange}, against a stand-in token server on the loopback interface.
+ */
+public class TokenExchangeTest
+{
+	// Longest a test waits for something that should happen
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private TokenServer fServer;
+	private Events fEvents;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		fServer = new TokenServer();
+		fEvents = new Events();
+	}
+
+	@After
+	public void tearDown()
+	{
+		// Turning the exchange off drops every cached token
+		TokenExchange.configure( null, 0, 0 );
+		fServer.stop();
+	}
+
+	@Test
+	public void exchangesTheCodeForATokenInTheBackground() throws Exception
+	{
+		fServer.answer( "{\"access_token\":\"access1\",\"refresh_token\":\"refresh1\",\"expires_in\":3600}" );
+		TokenExchange.configure( fServer.getURL(), 60, 5000 );
+		TokenExchange.start( "exchange", "code1" );
+
+		// The server gets the code
+		JSONObject request = fServer.nextRequest();
+		assertEquals( "authorization_code", request.getString( "grant_type" ) );
+		assertEquals( "code1", request.getString( "code" ) );
+		assertEquals( "exchange", request.getString( "correlationID" ) );
+
+		// And Lua the token
+		TokenExchange.get( "exchange", fEvents, 1, 1 );
+		PayPalEventTask event = fEvents.next();
+		assertEquals( "access1", event.fAccessToken );
+		assertTrue( event.fDurationNanos > 3500 * 1000000000L );
+	}
+
+	@Test
+	public void reportsAnswersWithoutExpiresInAsErrors() throws Exception
+	{
+		fServer.answer( "{\"access_token\":\"access1\"}" );
+		TokenExchange.configure( fServer.getURL(), 60, 5000 );
+		TokenExchange.start( "noExpiry", "code1" );
+		TokenExchange.get( "noExpiry", fEvents, 1, 1 );
+
+		PayPalEventTask event = fEvents.next();
+		assertNull( event.fAccessToken );
+		assertTrue( event.fError, event.fError.contains( "expires_in" ) );
+	}
+
+	@Test
+	public void reportsUnknownCorrelationIDs() throws Exception
+	{
+		TokenExchange.configure( fServer.getURL(), 60, 5000 );
+		TokenExchange.get( "unknown", fEvents, 1, 1 );
+		assertNull( fEvents.next().fAccessToken );
+	}
+
+	@Test
+	public void onlyRefreshesTokensThatAreRead() throws Exception
+	{
+		// Refreshed 200ms after each exchange
+		fServer.answer( "{\"access_token\":\"access1\",\"refresh_token\":\"refresh1\",\"expires_in\":1}" );
+		TokenExchange.configure( fServer.getURL(), 0.8, 5000 );
+		TokenExchange.start( "refresh", "code1" );
+		TokenExchange.get( "refresh", fEvents, 1, 1 );
+		assertEquals( "access1", fEvents.next().fAccessToken );
+		fServer.nextRequest();
+
+		// Read since the exchange, so it is refreshed
+		fServer.answer( "{\"access_token\":\"access2\",\"expires_in\":1}" );
+		JSONObject request = fServer.nextRequest();
+		assertEquals( "refresh_token", request.getString( "grant_type" ) );
+		assertEquals( "refresh1", request.getString( "refresh_token" ) );
+
+		// Not read since, so it is left to expire
+		assertNull( fServer.pollRequest( 1500 ) );
+
+		// Reading the expired token refreshes it first
+		fServer.answer( "{\"access_token\":\"access3\",\"expires_in\":60}" );
+		TokenExchange.get( "refresh", fEvents, 1, 1 );
+		assertEquals( "refresh_token", fServer.nextRequest().getString( "grant_type" ) );
+		assertEquals( "access3", fEvents.next().fAccessToken );
+	}
+
+	@Test
+	public void dropsTokensWhenTheURLChanges() throws Exception
+	{
+		fServer.answer( "{\"access_token\":\"access1\",\"refresh_token\":\"refresh1\",\"expires_in\":1}" );
+		TokenExchange.configure( fServer.getURL(), 0.8, 5000 );
+		TokenExchange.start( "moved", "code1" );
+		TokenExchange.get( "moved", fEvents, 1, 1 );
+		assertEquals( "access1", fEvents.next().fAccessToken );
+		fServer.nextRequest();
+
+		// The scheduled refresh never reaches the old server
+		TokenServer other = new TokenServer();
+		try
+		{
+			TokenExchange.configure( other.getURL(), 0.8, 5000 );
+			assertNull( fServer.pollRequest( 1000 ) );
+			assertNull( other.pollRequest( 0 ) );
+
+			TokenExchange.get( "moved", fEvents, 1, 1 );
+			assertNull( fEvents.next().fAccessToken );
+		}
+		finally
+		{
+			other.stop();
+		}
+	}
+
+	@Test
+	public void keepsTheTokensOfThirtyTwoCorrelationIDs() throws Exception
+	{
+		fServer.answer( "{\"access_token\":\"access1\",\"expires_in\":3600}" );
+		TokenExchange.configure( fServer.getURL(), 60, 5000 );
+		for ( int i = 0; i <= 32; i++ )
+		{
+			TokenExchange.start( "cached" + i, "code" + i );
+			Thread.sleep( 1 );
+		}
+
+		// The one read longest ago is dropped
+		TokenExchange.get( "cached0", fEvents, 1, 1 );
+		assertNull( fEvents.next().fAccessToken );
+		TokenExchange.get( "cached32", fEvents, 1, 1 );
+		assertEquals( "access1", fEvents.next().fAccessToken );
+	}
+
+	// Collects the events sent to Lua
+	private static class Events extends CoronaRuntimeTaskDispatcher
+	{
+		private final LinkedBlockingQueue<PayPalEventTask> fTasks = new LinkedBlockingQueue<PayPalEventTask>();
+
+		Events()
+		{
+			super( (LuaState)null );
+		}
+
+		@Override
+		public void send( CoronaRuntimeTask task )
+		{
+			fTasks.add( (PayPalEventTask)task );
+		}
+
+		PayPalEventTask next() throws InterruptedException
+		{
+			PayPalEventTask task = fTasks.poll( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+			assertNotNull( "no event was sent", task );
+			return task;
+		}
+	}
+
+	// A token server that records the requests and answers each with the same JSON
+	private static class TokenServer implements HttpHandler
+	{
+		private final HttpServer fHttpServer;
+		private final LinkedBlockingQueue<JSONObject> fRequests = new LinkedBlockingQueue<JSONObject>();
+		private volatile String fAnswer = "{}";
+
+		TokenServer() throws IOException
+		{
+			fHttpServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+			fHttpServer.createContext( "/token", this );
+			fHttpServer.start();
+		}
+
+		String getURL()
+		{
+			return "http://127.0.0.1:" + fHttpServer.getAddress().getPort() + "/token";
+		}
+
+		void answer( String json )
+		{
+			fAnswer = json;
+		}
+
+		JSONObject nextRequest() throws InterruptedException
+		{
+			JSONObject request = pollRequest( TIMEOUT_MILLIS );
+			assertNotNull( "no request reached the server", request );
+			return request;
+		}
+
+		JSONObject pollRequest( long timeoutMillis ) throws InterruptedException
+		{
+			return fRequests.poll( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+
+		void stop()
+		{
+			fHttpServer.stop( 0 );
+		}
+
+		@Override
+		public void handle( HttpExchange exchange ) throws IOException
+		{
+			try
+			{
+				fRequests.add( new JSONObject( read( exchange.getRequestBody() ) ) );
+			}
+			catch ( Exception ex )
+			{
+				throw new IOException( ex );
+			}
+
+			byte[] answer = fAnswer.getBytes( "UTF-8" );
+			exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+			exchange.sendResponseHeaders( 200, answer.length );
+			OutputStream out = exchange.getResponseBody();
+			out.write( answer );
+			out.close();
+		}
+
+		private static String read( InputStream in ) throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ( ( count = in.read( buffer ) ) != -1 )
+			{
+				bytes.write( buffer, 0, count );
+			}
+			return bytes.toString( "UTF-8" );
+		}
+	}
+}